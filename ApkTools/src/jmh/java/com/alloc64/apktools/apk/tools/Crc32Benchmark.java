@@ -0,0 +1,99 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of large file computed by java.util.zip.CRC32 in a single stream and by ChunkedCrc32 in parallel.
+ * File is read from page cache after the first iteration, so the scores compare hashing, not disk speed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Crc32Benchmark
+{
+    private static final int FILE_BUFFER = 32 * 1024;
+
+    @Param({"67108864", "268435456", "1073741824"})
+    public long size;
+
+    private File file;
+    private ChunkedCrc32 chunkedCrc32;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("crc32-benchmark", ".obb");
+        chunkedCrc32 = new ChunkedCrc32(0, Runtime.getRuntime().availableProcessors());
+
+        byte[] buffer = new byte[1024 * 1024];
+        Random random = new Random(0);
+
+        try (OutputStream os = new FileOutputStream(file))
+        {
+            for (long written = 0; written < size; written += buffer.length)
+            {
+                random.nextBytes(buffer);
+                os.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public long sequential() throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[FILE_BUFFER];
+
+        try (InputStream is = new FileInputStream(file))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                crc.update(buffer, 0, read);
+        }
+
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long chunked() throws IOException
+    {
+        return chunkedCrc32.compute(file);
+    }
+}
@@ -0,0 +1,128 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Entries per second of ApkZipalign on archive with many small resource entries, scores are per entry.
+ * The gc profiler (enabled in build.gradle) reports bytes allocated per entry as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipalignBenchmark
+{
+    private static final int ENTRY_COUNT = 40000;
+    private static final int MAX_ENTRY_SIZE = 2048;
+
+    private final ApkZipalign zipalign = new ApkZipalign();
+
+    private File folder;
+    private File inputFile;
+    private File alignedFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        folder = Files.createTempDirectory("zipalign-benchmark").toFile();
+        inputFile = new File(folder, "input.apk");
+        alignedFile = new File(folder, "aligned.apk");
+        outputFile = new File(folder, "output.apk");
+
+        writeArchive(inputFile);
+        zipalign.zipalign(inputFile, alignedFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRY_COUNT)
+    public void zipalign() throws IOException
+    {
+        zipalign.zipalign(inputFile, outputFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRY_COUNT)
+    public boolean isAligned() throws IOException
+    {
+        return zipalign.isAligned(alignedFile);
+    }
+
+    /**
+     * Half of entries is stored (unaligned, as ZipOutputStream writes them), other half deflated with data descriptors.
+     */
+    private static void writeArchive(File file) throws IOException
+    {
+        Random random = new Random(0);
+        CRC32 crc = new CRC32();
+
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file)))
+        {
+            for (int i = 0; i < ENTRY_COUNT; i++)
+            {
+                byte[] data = new byte[random.nextInt(MAX_ENTRY_SIZE)];
+                random.nextBytes(data);
+
+                ZipEntry entry;
+
+                if (i % 2 == 0)
+                {
+                    crc.reset();
+                    crc.update(data, 0, data.length);
+
+                    entry = new ZipEntry(String.format("res/drawable-xhdpi/image_%d.png", i));
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                else
+                {
+                    entry = new ZipEntry(String.format("res/layout/layout_%d.xml", i));
+                }
+
+                entry.setTime(1546300800000L + i * 2000L);
+
+                zos.putNextEntry(entry);
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+    }
+}
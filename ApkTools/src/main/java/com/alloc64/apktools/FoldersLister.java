@@ -6,10 +6,10 @@
 
 package com.alloc64.apktools;
 
+import com.alloc64.apktools.apk.ApkArchive;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class FoldersLister
 {
@@ -93,19 +93,14 @@ public class FoldersLister
 
     public static void listZip(File apkFile, ZipCallback callback) throws Exception
     {
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(apkFile));
-        ZipEntry zipEntry = zis.getNextEntry();
-
-        while (zipEntry != null)
+        try(ApkArchive archive = new ApkArchive(apkFile))
         {
-            if(callback != null)
-                callback.onProcessFile(zipEntry);
-
-            zipEntry = zis.getNextEntry();
+            for(ApkArchive.Entry entry : archive.getEntries())
+            {
+                if(callback != null)
+                    callback.onProcessFile(entry.toZipEntry());
+            }
         }
-
-        zis.closeEntry();
-        zis.close();
     }
 
     public static String relativizePath(File parent, File folder)
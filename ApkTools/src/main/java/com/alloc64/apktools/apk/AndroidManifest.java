@@ -11,6 +11,7 @@ import com.umeng.editor.android.AndroidManifestAXML;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.file.Files;
 
 public class AndroidManifest
 {
@@ -45,6 +46,8 @@ public class AndroidManifest
 
     public void save() throws Exception
     {
+        // file may be linked to extraction cache, it is replaced instead of written in place
+        Files.deleteIfExists(getFile().toPath());
         manifest.build(new FileOutputStream(getFile()));
     }
 }
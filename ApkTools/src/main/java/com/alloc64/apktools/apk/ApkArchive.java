@@ -0,0 +1,780 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk;
+
+import com.alloc64.apktools.apk.tools.CodecPool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads ZIP central directory of an APK directly, exposing exact local header offsets
+ * so entries can be copied raw (without inflating) into another archive.
+ * <p>
+ * End of central directory, central directory and local headers are read through memory mapped view of the file,
+ * data of stored entries can be accessed as zero-copy {@link ByteBuffer} slices.
+ * </p>
+ */
+public class ApkArchive implements Closeable
+{
+    public static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    public static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    public static final int END_HEADER_SIGNATURE = 0x06054b50;
+
+    public static final int LOCAL_HEADER_LEN = 30;
+    public static final int CENTRAL_HEADER_LEN = 46;
+    public static final int END_HEADER_LEN = 22;
+
+    public static final int ZIP64_END_HEADER_SIGNATURE = 0x06064b50;
+    public static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    public static final int ZIP64_END_HEADER_LEN = 56;
+    public static final int ZIP64_LOCATOR_LEN = 20;
+    public static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    /**
+     * Value of 32-bit size and offset fields, and of 16-bit entry count, whose actual value is stored in ZIP64 structures.
+     */
+    public static final long ZIP64_MAGIC = 0xffffffffL;
+    public static final int ZIP64_MAGIC_COUNT = 0xffff;
+
+    private static final int MAX_COMMENT_LEN = 0xffff;
+
+    public static class Entry
+    {
+        private final String name;
+        private final byte[] nameBytes;
+        private final int flags;
+        private final int method;
+        private final int dosTime;
+        private final int dosDate;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final byte[] extra;
+        private final byte[] comment;
+        private final int externalAttributes;
+        private final long localHeaderOffset;
+
+        private volatile long dataOffset = -1;
+
+        Entry(byte[] nameBytes, int flags, int method, int dosTime, int dosDate, long crc, long compressedSize, long size, byte[] extra, byte[] comment, int externalAttributes, long localHeaderOffset)
+        {
+            this.name = new String(nameBytes, StandardCharsets.UTF_8);
+            this.nameBytes = nameBytes;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.dosDate = dosDate;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.extra = extra;
+            this.comment = comment;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public byte[] getNameBytes()
+        {
+            return nameBytes;
+        }
+
+        public int getFlags()
+        {
+            return flags;
+        }
+
+        public int getMethod()
+        {
+            return method;
+        }
+
+        public int getDosTime()
+        {
+            return dosTime;
+        }
+
+        public int getDosDate()
+        {
+            return dosDate;
+        }
+
+        public long getCrc()
+        {
+            return crc;
+        }
+
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public byte[] getExtra()
+        {
+            return extra;
+        }
+
+        public byte[] getComment()
+        {
+            return comment;
+        }
+
+        public int getExternalAttributes()
+        {
+            return externalAttributes;
+        }
+
+        public long getLocalHeaderOffset()
+        {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory()
+        {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Converts MS-DOS date and time of entry to Java time.
+         */
+        public long getTime()
+        {
+            GregorianCalendar cal = new GregorianCalendar(
+                    ((dosDate >> 9) & 0x7f) + 1980,
+                    ((dosDate >> 5) & 0x0f) - 1,
+                    dosDate & 0x1f,
+                    (dosTime >> 11) & 0x1f,
+                    (dosTime >> 5) & 0x3f,
+                    (dosTime << 1) & 0x3e);
+
+            return cal.getTimeInMillis();
+        }
+
+        /**
+         * Creates {@link ZipEntry} from central directory record, nothing is read from the archive.
+         */
+        public ZipEntry toZipEntry()
+        {
+            ZipEntry entry = new ZipEntry(name);
+
+            if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED)
+                entry.setMethod(method);
+
+            entry.setTime(getTime());
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(compressedSize);
+
+            if (extra.length > 0)
+                entry.setExtra(extra);
+
+            if (comment.length > 0)
+                entry.setComment(new String(comment, StandardCharsets.UTF_8));
+
+            return entry;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+    private final byte[] comment;
+    private final long centralDirectoryOffset;
+
+    public ApkArchive(File file) throws IOException
+    {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try
+        {
+            long fileSize = channel.size();
+
+            this.mapped = fileSize <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize) : null;
+
+            ByteBuffer end = findEndOfCentralDirectory();
+            long endOffset = fileSize - end.remaining();
+
+            long entryCount = end.getShort(10) & 0xffff;
+            long centralDirectorySize = end.getInt(12) & 0xffffffffL;
+            long centralDirectoryOffset = end.getInt(16) & 0xffffffffL;
+
+            if (entryCount == ZIP64_MAGIC_COUNT || centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC)
+            {
+                ByteBuffer zip64End = findZip64EndOfCentralDirectory(endOffset);
+
+                if (zip64End != null)
+                {
+                    entryCount = zip64End.getLong(32);
+                    centralDirectorySize = zip64End.getLong(40);
+                    centralDirectoryOffset = zip64End.getLong(48);
+                }
+            }
+
+            if (entryCount > Integer.MAX_VALUE)
+                throw new ZipException("Too many entries in archive: " + file);
+
+            this.centralDirectoryOffset = centralDirectoryOffset;
+            this.comment = new byte[end.getShort(20) & 0xffff];
+
+            end.position(END_HEADER_LEN);
+            end.get(comment);
+
+            this.entries = new ArrayList<>((int) entryCount);
+            this.entriesByName = new LinkedHashMap<>((int) Math.min(entryCount * 2, Integer.MAX_VALUE));
+
+            readCentralDirectory((int) entryCount, centralDirectorySize);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    public List<Entry> getEntries()
+    {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public Entry getEntry(String name)
+    {
+        return entriesByName.get(name);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public byte[] getComment()
+    {
+        return comment;
+    }
+
+    public long getCentralDirectoryOffset()
+    {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Resolves offset of entry data by reading its local header. Local extra field may differ from central one.
+     */
+    public long getDataOffset(Entry entry) throws IOException
+    {
+        if (entry.dataOffset >= 0)
+            return entry.dataOffset;
+
+        ByteBuffer header = readLocalHeader(entry);
+
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+
+        entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_LEN + nameLength + extraLength;
+
+        return entry.dataOffset;
+    }
+
+    /**
+     * Returns extra field of local header, which may differ from the one in central directory (e.g. alignment padding).
+     */
+    public byte[] getLocalExtra(Entry entry) throws IOException
+    {
+        ByteBuffer header = readLocalHeader(entry);
+
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+
+        byte[] extra = new byte[extraLength];
+
+        ByteBuffer buffer = map(entry.localHeaderOffset + LOCAL_HEADER_LEN + nameLength, extraLength);
+        buffer.get(extra);
+
+        return extra;
+    }
+
+    /**
+     * Returns zero-copy read-only view of entry data as stored in the archive. For stored entries this is the content itself.
+     * Entries of 2 GB and more can't be viewed at once, use {@link #getRawData(Entry, long, int)} or {@link #transferRawData(Entry, WritableByteChannel)}.
+     */
+    public ByteBuffer getRawData(Entry entry) throws IOException
+    {
+        if (entry.compressedSize > Integer.MAX_VALUE)
+            throw new ZipException(String.format("Entry %s is too large (%d bytes) to be mapped at once, read it in windows", entry.name, entry.compressedSize));
+
+        return map(getDataOffset(entry), entry.compressedSize);
+    }
+
+    /**
+     * Returns zero-copy read-only view of length bytes of entry data starting at offset within the data.
+     */
+    public ByteBuffer getRawData(Entry entry, long offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > entry.compressedSize)
+            throw new EOFException("Region out of bounds of entry: " + entry.name);
+
+        return map(getDataOffset(entry) + offset, length);
+    }
+
+    /**
+     * Copies compressed bytes of entry, as stored in archive, to target channel.
+     */
+    public void transferRawData(Entry entry, WritableByteChannel target) throws IOException
+    {
+        long position = getDataOffset(entry);
+        long remaining = entry.compressedSize;
+
+        while (remaining > 0)
+        {
+            long transferred = channel.transferTo(position, remaining, target);
+
+            if (transferred <= 0)
+                throw new EOFException("Unexpected end of entry: " + entry.name);
+
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    /**
+     * Opens uncompressed content of entry.
+     */
+    public InputStream getInputStream(Entry entry) throws IOException
+    {
+        InputStream is = new RawInputStream(getDataOffset(entry), entry.compressedSize);
+
+        switch (entry.method)
+        {
+            case ZipEntry.STORED:
+                return is;
+
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterInputStream(is);
+
+            default:
+                is.close();
+                throw new ZipException("Unsupported compression method " + entry.method + " of entry: " + entry.name);
+        }
+    }
+
+    /**
+     * Opens uncompressed content of entry using given inflater, which is reset and not ended on close,
+     * so caller can reuse it for other entries.
+     */
+    public InputStream getInputStream(Entry entry, Inflater inflater) throws IOException
+    {
+        if (entry.method != ZipEntry.DEFLATED)
+            return getInputStream(entry);
+
+        inflater.reset();
+
+        return new EntryInflaterInputStream(new RawInputStream(getDataOffset(entry), entry.compressedSize), inflater, false);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private ByteBuffer findEndOfCentralDirectory() throws IOException
+    {
+        long fileSize = channel.size();
+
+        if (fileSize < END_HEADER_LEN)
+            throw new ZipException("File too short to be a ZIP archive: " + file);
+
+        int length = (int) Math.min(fileSize, END_HEADER_LEN + MAX_COMMENT_LEN);
+        long position = fileSize - length;
+
+        ByteBuffer buffer = map(position, length);
+
+        for (int i = length - END_HEADER_LEN; i >= 0; i--)
+        {
+            if (buffer.getInt(i) != END_HEADER_SIGNATURE)
+                continue;
+
+            int commentLength = buffer.getShort(i + 20) & 0xffff;
+
+            if (i + END_HEADER_LEN + commentLength != length)
+                continue;
+
+            buffer.position(i);
+
+            return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        throw new ZipException("End of central directory not found: " + file);
+    }
+
+    /**
+     * Reads ZIP64 end of central directory record referenced by locator preceding end of central directory record,
+     * returns null when there is no locator.
+     */
+    private ByteBuffer findZip64EndOfCentralDirectory(long endOffset) throws IOException
+    {
+        if (endOffset < ZIP64_LOCATOR_LEN)
+            return null;
+
+        ByteBuffer locator = map(endOffset - ZIP64_LOCATOR_LEN, ZIP64_LOCATOR_LEN);
+
+        if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE)
+            return null;
+
+        long zip64EndOffset = locator.getLong(8);
+
+        if (zip64EndOffset < 0 || zip64EndOffset + ZIP64_END_HEADER_LEN > endOffset)
+            throw new ZipException("ZIP64 end of central directory out of bounds: " + file);
+
+        ByteBuffer zip64End = map(zip64EndOffset, ZIP64_END_HEADER_LEN);
+
+        if (zip64End.getInt(0) != ZIP64_END_HEADER_SIGNATURE)
+            throw new ZipException("Invalid ZIP64 end of central directory signature: " + file);
+
+        return zip64End;
+    }
+
+    private void readCentralDirectory(int entryCount, long centralDirectorySize) throws IOException
+    {
+        if (centralDirectoryOffset + centralDirectorySize > channel.size())
+            throw new ZipException("Central directory out of bounds: " + file);
+
+        ByteBuffer cd = map(centralDirectoryOffset, centralDirectorySize);
+
+        for (int i = 0; i < entryCount; i++)
+        {
+            if (cd.remaining() < CENTRAL_HEADER_LEN || cd.getInt(cd.position()) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("Invalid central directory header #" + i + ": " + file);
+
+            int p = cd.position();
+
+            int flags = cd.getShort(p + 8) & 0xffff;
+            int method = cd.getShort(p + 10) & 0xffff;
+            int dosTime = cd.getShort(p + 12) & 0xffff;
+            int dosDate = cd.getShort(p + 14) & 0xffff;
+            long crc = cd.getInt(p + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(p + 20) & 0xffffffffL;
+            long size = cd.getInt(p + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(p + 28) & 0xffff;
+            int extraLength = cd.getShort(p + 30) & 0xffff;
+            int commentLength = cd.getShort(p + 32) & 0xffff;
+            int externalAttributes = cd.getInt(p + 38);
+            long localHeaderOffset = cd.getInt(p + 42) & 0xffffffffL;
+
+            cd.position(p + CENTRAL_HEADER_LEN);
+
+            byte[] nameBytes = new byte[nameLength];
+            byte[] extra = new byte[extraLength];
+            byte[] entryComment = new byte[commentLength];
+
+            cd.get(nameBytes);
+            cd.get(extra);
+            cd.get(entryComment);
+
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC)
+            {
+                /*
+                 * ZIP64 extra field holds only values which did not fit, in fixed order.
+                 */
+                ByteBuffer zip64 = findExtraField(extra, ZIP64_EXTRA_FIELD_ID);
+
+                try
+                {
+                    if (zip64 == null)
+                        throw new ZipException("Missing ZIP64 extra field of entry #" + i + ": " + file);
+
+                    if (size == ZIP64_MAGIC)
+                        size = zip64.getLong();
+
+                    if (compressedSize == ZIP64_MAGIC)
+                        compressedSize = zip64.getLong();
+
+                    if (localHeaderOffset == ZIP64_MAGIC)
+                        localHeaderOffset = zip64.getLong();
+                }
+                catch (BufferUnderflowException e)
+                {
+                    throw new ZipException("Truncated ZIP64 extra field of entry #" + i + ": " + file);
+                }
+            }
+
+            Entry entry = new Entry(nameBytes, flags, method, dosTime, dosDate, crc, compressedSize, size, extra, entryComment, externalAttributes, localHeaderOffset);
+
+            entries.add(entry);
+            entriesByName.putIfAbsent(entry.name, entry);
+        }
+    }
+
+    /**
+     * Returns little-endian view of data of extra field with given header id, or null when there is no such field.
+     */
+    public static ByteBuffer findExtraField(byte[] extra, int headerId)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int offset = 0; offset + 4 <= extra.length; )
+        {
+            int length = buffer.getShort(offset + 2) & 0xffff;
+
+            if (offset + 4 + length > extra.length)
+                break;
+
+            if ((buffer.getShort(offset) & 0xffff) == headerId)
+            {
+                buffer.limit(offset + 4 + length).position(offset + 4);
+                return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            offset += 4 + length;
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all extra fields with given header id and trailing bytes which are not a well formed field.
+     * Returns the same array when there is nothing to remove.
+     */
+    public static byte[] removeExtraField(byte[] extra, int headerId)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = 0;
+        int keptLength = 0;
+
+        while (end + 4 <= extra.length)
+        {
+            int fieldEnd = end + 4 + (buffer.getShort(end + 2) & 0xffff);
+
+            if (fieldEnd > extra.length)
+                break;
+
+            if ((buffer.getShort(end) & 0xffff) != headerId)
+                keptLength += fieldEnd - end;
+
+            end = fieldEnd;
+        }
+
+        if (keptLength == extra.length)
+            return extra;
+
+        byte[] result = new byte[keptLength];
+
+        for (int offset = 0, position = 0; offset < end; )
+        {
+            int fieldEnd = offset + 4 + (buffer.getShort(offset + 2) & 0xffff);
+
+            if ((buffer.getShort(offset) & 0xffff) != headerId)
+            {
+                System.arraycopy(extra, offset, result, position, fieldEnd - offset);
+                position += fieldEnd - offset;
+            }
+
+            offset = fieldEnd;
+        }
+
+        return result;
+    }
+
+    private ByteBuffer readLocalHeader(Entry entry) throws IOException
+    {
+        if (entry.localHeaderOffset + LOCAL_HEADER_LEN > channel.size())
+            throw new ZipException("Local header out of bounds of entry: " + entry.name);
+
+        ByteBuffer header = map(entry.localHeaderOffset, LOCAL_HEADER_LEN);
+
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("Invalid local header signature of entry: " + entry.name);
+
+        return header;
+    }
+
+    /**
+     * Returns little-endian view of given file region, sliced from mapping of whole file when possible.
+     */
+    private ByteBuffer map(long position, long length) throws IOException
+    {
+        if (position < 0 || length < 0 || position + length > channel.size())
+            throw new EOFException("Region out of bounds of file: " + file);
+
+        ByteBuffer buffer;
+
+        if (mapped != null)
+        {
+            buffer = mapped.duplicate();
+            buffer.limit((int) (position + length));
+            buffer.position((int) position);
+            buffer = buffer.slice();
+        }
+        else
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private class RawInputStream extends InputStream
+    {
+        private long position;
+        private long remaining;
+
+        RawInputStream(long position, long length)
+        {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0)
+                return -1;
+
+            if (len == 0)
+                return 0;
+
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+
+            int read = channel.read(buffer, position);
+
+            if (read < 0)
+                throw new EOFException("Unexpected end of file: " + file);
+
+            position += read;
+            remaining -= read;
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, remaining));
+
+            position += skipped;
+            remaining -= skipped;
+
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    private static class EntryInflaterInputStream extends InflaterInputStream
+    {
+        private final boolean ownsInflater;
+
+        private boolean eof;
+        private boolean closed;
+
+        EntryInflaterInputStream(InputStream in)
+        {
+            this(in, CodecPool.shared().acquireInflater(), true);
+        }
+
+        EntryInflaterInputStream(InputStream in, Inflater inflater, boolean ownsInflater)
+        {
+            super(in, inflater, 8 * 1024);
+            this.ownsInflater = ownsInflater;
+        }
+
+        @Override
+        protected void fill() throws IOException
+        {
+            if (eof)
+                throw new EOFException("Unexpected end of ZLIB input stream");
+
+            len = in.read(buf, 0, buf.length);
+
+            if (len == -1)
+            {
+                // raw inflater may need one extra dummy byte to finish, same as java.util.zip.ZipFile does
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+                return;
+
+            closed = true;
+
+            if (ownsInflater)
+                CodecPool.shared().release(inf);
+
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk;
+
+import com.alloc64.apktools.apk.tools.AlignmentPolicy;
+import com.alloc64.apktools.apk.tools.ApkZipWriter;
+import com.alloc64.apktools.apk.tools.ApkZipper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Edits APK without extracting it. Replace/add/delete operations are staged and applied on {@link #commit(File)},
+ * entries which were not touched are copied from source APK as is (local header and compressed data).
+ * Stored entries are realigned on commit. Existing v1/v2/v3 signatures are not updated, so edited APK keeps
+ * a stale signature and has to be signed again (see {@link com.alloc64.apktools.apk.tools.ApkSigner}) before it is installed.
+ */
+public class ApkEditor implements Closeable
+{
+    private static class Operation
+    {
+        final File file;
+        final byte[] data;
+
+        Operation(File file, byte[] data)
+        {
+            this.file = file;
+            this.data = data;
+        }
+
+        boolean isDelete()
+        {
+            return file == null && data == null;
+        }
+    }
+
+    private final ApkArchive archive;
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+
+    private AlignmentPolicy alignmentPolicy = new AlignmentPolicy();
+
+    public ApkEditor(File apkFile) throws IOException
+    {
+        if (apkFile == null || !apkFile.exists())
+            throw new FileNotFoundException("APK file not found: " + apkFile);
+
+        this.archive = new ApkArchive(apkFile);
+    }
+
+    /**
+     * Alignment of stored entries written by {@link #commit(File)}, null keeps data offsets unaligned.
+     */
+    public void setAlignmentPolicy(AlignmentPolicy alignmentPolicy)
+    {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    public ApkArchive getArchive()
+    {
+        return archive;
+    }
+
+    /**
+     * Checks entry existence, staged operations included.
+     */
+    public boolean contains(String name)
+    {
+        Operation operation = operations.get(name);
+
+        if (operation != null)
+            return !operation.isDelete();
+
+        return archive.getEntry(name) != null;
+    }
+
+    /**
+     * Opens original content of entry in source APK.
+     */
+    public InputStream open(String name) throws IOException
+    {
+        ApkArchive.Entry entry = archive.getEntry(name);
+
+        if (entry == null)
+            throw new FileNotFoundException("Entry not found: " + name + " in " + archive.getFile());
+
+        return archive.getInputStream(entry);
+    }
+
+    public ApkEditor replace(String name, File file) throws IOException
+    {
+        if (file == null || !file.exists())
+            throw new FileNotFoundException("File not found: " + file);
+
+        return replace(name, new Operation(file, null));
+    }
+
+    public ApkEditor replace(String name, byte[] data) throws IOException
+    {
+        return replace(name, new Operation(null, data));
+    }
+
+    public ApkEditor add(String name, File file) throws IOException
+    {
+        if (file == null || !file.exists())
+            throw new FileNotFoundException("File not found: " + file);
+
+        return add(name, new Operation(file, null));
+    }
+
+    public ApkEditor add(String name, byte[] data)
+    {
+        return add(name, new Operation(null, data));
+    }
+
+    public ApkEditor delete(String name) throws IOException
+    {
+        if (!contains(name))
+            throw new FileNotFoundException("Entry not found: " + name + " in " + archive.getFile());
+
+        if (archive.getEntry(name) == null)
+            operations.remove(name);
+        else
+            operations.put(name, new Operation(null, null));
+
+        return this;
+    }
+
+    /**
+     * Drops all staged operations.
+     */
+    public void rollback()
+    {
+        operations.clear();
+    }
+
+    /**
+     * Writes source APK with staged operations applied to outputFile. Output is written to temporary file first,
+     * so outputFile is never left in half written state.
+     */
+    public File commit(File outputFile) throws IOException
+    {
+        File tempFile = new File(outputFile.getParentFile(), outputFile.getName() + ".tmp");
+
+        try
+        {
+            try (ApkZipWriter writer = new ApkZipWriter(tempFile))
+            {
+                writer.setComment(archive.getComment());
+                writer.setAlignmentPolicy(alignmentPolicy);
+
+                for (ApkArchive.Entry entry : archive.getEntries())
+                {
+                    Operation operation = operations.get(entry.getName());
+
+                    if (operation == null)
+                        writer.copyEntry(archive, entry);
+                    else if (!operation.isDelete())
+                        write(writer, entry.getName(), operation, entry.getMethod());
+                }
+
+                for (Map.Entry<String, Operation> kvp : operations.entrySet())
+                {
+                    String name = kvp.getKey();
+
+                    if (archive.getEntry(name) == null)
+                        write(writer, name, kvp.getValue(), ApkZipper.getCompressionMethod(name));
+                }
+            }
+
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+
+        operations.clear();
+
+        return outputFile;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        operations.clear();
+        archive.close();
+    }
+
+    private ApkEditor replace(String name, Operation operation) throws IOException
+    {
+        if (!contains(name))
+            throw new FileNotFoundException("Entry not found: " + name + " in " + archive.getFile());
+
+        operations.put(name, operation);
+
+        return this;
+    }
+
+    private ApkEditor add(String name, Operation operation)
+    {
+        if (contains(name))
+            throw new IllegalStateException("Entry already exists: " + name + " in " + archive.getFile());
+
+        operations.put(name, operation);
+
+        return this;
+    }
+
+    private void write(ApkZipWriter writer, String name, Operation operation, int method) throws IOException
+    {
+        if (operation.file != null)
+            writer.writeEntry(name, operation.file, method);
+        else
+            writer.writeEntry(name, operation.data, method);
+    }
+}
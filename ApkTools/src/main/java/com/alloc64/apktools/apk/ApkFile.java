@@ -7,8 +7,14 @@
 package com.alloc64.apktools.apk;
 
 import com.alloc64.apktools.FoldersLister;
+import com.alloc64.apktools.apk.tools.ApkSigner;
 import com.alloc64.apktools.apk.tools.ApkTools;
 import com.alloc64.apktools.apk.tools.ApkZipper;
+import com.alloc64.apktools.apk.tools.CompressionPolicy;
+import com.alloc64.apktools.apk.tools.ExtractionCache;
+import com.alloc64.apktools.apk.tools.ExtractionSnapshot;
+import com.alloc64.apktools.apk.tools.SourcePreservingCompressionPolicy;
+import com.alloc64.apktools.apk.tools.WorkingStorage;
 import com.alloc64.apktools.keystore.KeystoreInfo;
 
 import org.apache.commons.io.FileUtils;
@@ -17,6 +23,7 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -31,6 +38,11 @@ public class ApkFile extends ZipFileAware
 {
     public static final int allowedMaxDexCount = 20;
 
+    /**
+     * Disassembled smali takes roughly four times more space than dex it was disassembled from.
+     */
+    private static final int SMALI_EXPANSION = 4;
+
     public interface AsyncFunction<Param, Return>
     {
         Return apply(Param p) throws Exception;
@@ -50,6 +62,14 @@ public class ApkFile extends ZipFileAware
     private List<DexFile> dexFileList = new ArrayList<>();
     private List<File> otherFiles = new ArrayList<>();
 
+    private final ExtractionSnapshot extractionSnapshot = new ExtractionSnapshot();
+    private ApkZipper.ZipResult zipResult;
+    private ExtractionCache extractionCache;
+    private boolean lazyExtraction;
+    private CompressionPolicy compressionPolicy;
+    private boolean storeDex;
+
+    private final WorkingStorage workingStorage;
     private boolean deleteWorkingFolder;
 
     private FoldersLister.FileCallback dexListingCallback;
@@ -61,12 +81,51 @@ public class ApkFile extends ZipFileAware
 
         this.apkBasename = FilenameUtils.getBaseName(apkFile.getName());
 
+        this.workingStorage = null;
         this.apkWorkingFolder = new File(tempFolder, apkBasename);
         this.apkUnzippedFolder = new File(apkWorkingFolder, "unzipped");
 
         this.referenceResolver = new SmaliReferenceResolver(this);
     }
 
+    /**
+     * Working folder (unzipped APK and disassembled dex files) is allocated in workingStorage,
+     * output files are still written to tempFolder.
+     */
+    public ApkFile(File tempFolder, File apkFile, WorkingStorage workingStorage) throws IOException
+    {
+        this.tempFolder = tempFolder;
+        this.apkFile = apkFile;
+
+        this.apkBasename = FilenameUtils.getBaseName(apkFile.getName());
+
+        this.workingStorage = workingStorage;
+        this.apkWorkingFolder = workingStorage.allocate(apkBasename, estimateWorkingSize(apkFile));
+        this.apkUnzippedFolder = new File(apkWorkingFolder, "unzipped");
+
+        this.referenceResolver = new SmaliReferenceResolver(this);
+    }
+
+    private static long estimateWorkingSize(File apkFile) throws IOException
+    {
+        long size = 0;
+
+        try (ApkArchive archive = new ApkArchive(apkFile))
+        {
+            for (ApkArchive.Entry entry : archive.getEntries())
+            {
+                String name = entry.getName();
+
+                if (name.startsWith("classes") && name.endsWith(".dex") && name.indexOf('/') < 0)
+                    size += entry.getSize() * SMALI_EXPANSION;
+
+                size += entry.getSize();
+            }
+        }
+
+        return size;
+    }
+
     public File getApkFile()
     {
         return apkFile;
@@ -147,6 +206,60 @@ public class ApkFile extends ZipFileAware
         return otherFiles;
     }
 
+    /**
+     * Counts of entries reused from apkFile and re-encoded by the last zip, null when nothing was zipped yet.
+     */
+    public ApkZipper.ZipResult getZipResult()
+    {
+        return zipResult;
+    }
+
+    /**
+     * Unzipped folder is populated from cache, files linked from it must be replaced instead of written in place.
+     */
+    public void setExtractionCache(ExtractionCache extractionCache)
+    {
+        this.extractionCache = extractionCache;
+    }
+
+    /**
+     * Only AndroidManifest.xml and dex files are extracted by {@link #unzipOnly()}, other entries are extracted
+     * on first access by {@link #getEntryFile(String)} and copied from the source APK as is otherwise.
+     * Extraction cache is not used in lazy mode.
+     */
+    public void setLazyExtraction(boolean lazyExtraction)
+    {
+        this.lazyExtraction = lazyExtraction;
+    }
+
+    /**
+     * Returns file of entry in unzipped folder, entry deferred by lazy extraction is extracted first.
+     */
+    public synchronized File getEntryFile(String name) throws IOException
+    {
+        if (extractionSnapshot.isDeferred(name))
+            return ApkTools.zipper().extractEntry(apkFile, name, apkUnzippedFolder, extractionSnapshot);
+
+        return new File(apkUnzippedFolder, name);
+    }
+
+    /**
+     * Sets policy deciding compression of changed and new files when zipping, by default entries keep method
+     * they had in source APK and resources.arsc is stored (see {@link com.alloc64.apktools.apk.tools.SourcePreservingCompressionPolicy}).
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy)
+    {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Root dex files are stored uncompressed when zipping (useEmbeddedDex), applies only when no compression policy is set.
+     */
+    public void setStoreDex(boolean storeDex)
+    {
+        this.storeDex = storeDex;
+    }
+
     public void setDexListingCallback(FoldersLister.FileCallback dexListingCallback)
     {
         this.dexListingCallback = dexListingCallback;
@@ -189,28 +302,26 @@ public class ApkFile extends ZipFileAware
     {
         deleteMetaInfFolder();
 
-        File zippedApk = zip();
-
         if (keystore == null)
         {
+            File zippedApk = zip();
+
             deleteWorkingFolder();
 
             return zippedApk;
         }
 
-        File signedApk = sign(zippedApk, keystore);
-        File zipalignedApk = zipalign(signedApk);
+        File zipalignedApk = zipAndSign(keystore);
 
         deleteWorkingFolder();
 
-        zippedApk.delete();
-        signedApk.delete();
-
         return zipalignedApk;
     }
 
     private void deleteMetaInfFolder() throws Exception
     {
+        extractionSnapshot.discardDeferred("META-INF/");
+
         if (metaInfFolder != null && metaInfFolder.exists())
             FileUtils.deleteDirectory(metaInfFolder);
     }
@@ -218,6 +329,14 @@ public class ApkFile extends ZipFileAware
     private void deleteWorkingFolder() throws Exception
     {
         if (deleteWorkingFolder)
+            releaseWorkingFolder();
+    }
+
+    private void releaseWorkingFolder() throws IOException
+    {
+        if (workingStorage != null)
+            workingStorage.release(apkWorkingFolder);
+        else if (apkWorkingFolder.exists())
             FileUtils.deleteDirectory(apkWorkingFolder);
     }
 
@@ -311,20 +430,35 @@ public class ApkFile extends ZipFileAware
             androidManifest.parse();
     }
 
+    private static boolean isEagerEntry(String name)
+    {
+        return "AndroidManifest.xml".equals(name) || name.startsWith("classes") && name.endsWith(".dex") && name.indexOf('/') < 0;
+    }
+
     public void unzipOnly() throws IOException
     {
-        ApkTools.zipper().unzip(apkFile, apkUnzippedFolder);
+        extractionSnapshot.clear();
+
+        if (lazyExtraction)
+            ApkTools.zipper().unzip(apkFile, apkUnzippedFolder, extractionSnapshot, ApkFile::isEagerEntry);
+        else if (extractionCache != null)
+            extractionCache.extract(apkFile, apkUnzippedFolder, extractionSnapshot);
+        else
+            ApkTools.zipper().unzip(apkFile, apkUnzippedFolder, extractionSnapshot);
 
         if (!apkUnzippedFolder.exists())
             throw new IllegalStateException("Failed to unzip file " + apkFile + " to folder: " + apkUnzippedFolder);
     }
 
+    /**
+     * Zips unzipped folder, only files added or changed since {@link #unzipOnly()} are compressed again.
+     */
     public File zip() throws IOException
     {
         File zippedFile = new File(tempFolder, String.format("%s_zipped.apk", apkBasename));
 
-        ApkZipper zipper = new ApkZipper();
-        zipper.zip(apkUnzippedFolder, zippedFile);
+        ApkZipper zipper = createZipper();
+        this.zipResult = zipper.zip(apkUnzippedFolder, zippedFile, apkFile, null, extractionSnapshot);
 
         if (!zippedFile.exists())
             throw new IllegalStateException("Failed to zip file " + apkFile + " to: " + zippedFile);
@@ -332,6 +466,47 @@ public class ApkFile extends ZipFileAware
         return zippedFile;
     }
 
+    /**
+     * Zips, signs (JAR signature) and zipaligns unzipped folder in a single pass over its files,
+     * v2/v3 signatures are appended afterwards without rewriting entries.
+     */
+    public File zipAndSign(KeystoreInfo keystore) throws IOException, GeneralSecurityException
+    {
+        File zipalignedFile = new File(tempFolder, String.format("%s_zipaligned.apk", apkBasename));
+
+        ApkSigner signer = ApkTools.signer();
+
+        ApkZipper zipper = createZipper();
+        this.zipResult = zipper.zip(apkUnzippedFolder, zipalignedFile, apkFile, signer.createV1Signer(keystore), extractionSnapshot);
+
+        signer.addSigningBlock(keystore, zipalignedFile);
+
+        if (!zipalignedFile.exists())
+            throw new IllegalStateException("Failed to zip and sign file " + apkFile + " to: " + zipalignedFile);
+
+        return zipalignedFile;
+    }
+
+    private ApkZipper createZipper()
+    {
+        ApkZipper zipper = new ApkZipper();
+
+        if (compressionPolicy != null)
+            zipper.setCompressionPolicy(compressionPolicy);
+        else if (storeDex)
+            zipper.setCompressionPolicy(new SourcePreservingCompressionPolicy().storeDex());
+
+        return zipper;
+    }
+
+    /**
+     * Opens editor staging changes directly on APK file, no extraction to tempFolder is needed.
+     */
+    public ApkEditor edit() throws IOException
+    {
+        return new ApkEditor(apkFile);
+    }
+
     public File sign(File outputFile, KeystoreInfo keystore) throws IOException, InterruptedException
     {
         ApkTools.signer().sign(keystore, outputFile);
@@ -342,11 +517,17 @@ public class ApkFile extends ZipFileAware
         return outputFile;
     }
 
+    /**
+     * Aligns inputFile into new file in tempFolder, already aligned inputFile is only copied.
+     */
     public File zipalign(File inputFile) throws Exception
     {
         File zipalignedFile = new File(tempFolder, String.format("%s_zipaligned.apk", apkBasename));
 
-        ApkTools.zipaligner().zipalign(inputFile, zipalignedFile);
+        if (ApkTools.zipaligner().isAligned(inputFile))
+            FileUtils.copyFile(inputFile, zipalignedFile);
+        else
+            ApkTools.zipaligner().zipalign(inputFile, zipalignedFile);
 
         if (!zipalignedFile.exists())
             throw new IllegalStateException("Failed to zipalign file " + apkFile + " to: " + zipalignedFile);
@@ -354,6 +535,17 @@ public class ApkFile extends ZipFileAware
         return zipalignedFile;
     }
 
+    /**
+     * Same as {@link #zipalign(File)}, but inputFile itself is returned when it is aligned already.
+     */
+    public File zipalignIfNeeded(File inputFile) throws Exception
+    {
+        if (ApkTools.zipaligner().isAligned(inputFile))
+            return inputFile;
+
+        return zipalign(inputFile);
+    }
+
     public DexFile createNewDex()
     {
         String dexName = getLastDex()
@@ -383,8 +575,7 @@ public class ApkFile extends ZipFileAware
     @Override
     public void dispose() throws IOException
     {
-        if(apkWorkingFolder.exists())
-            FileUtils.deleteDirectory(apkWorkingFolder);
+        releaseWorkingFolder();
 
         if(apkUnzippedFolder.exists())
             FileUtils.deleteDirectory(apkUnzippedFolder);
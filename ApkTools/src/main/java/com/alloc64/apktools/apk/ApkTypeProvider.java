@@ -6,16 +6,24 @@
 
 package com.alloc64.apktools.apk;
 
-import java.io.BufferedInputStream;
+import org.apache.commons.io.IOUtils;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class ApkTypeProvider
 {
+    /**
+     * Deflated entries are probed for nested archive only when their name suggests it,
+     * stored entries are probed always as it costs no decompression.
+     */
+    private static final Pattern ARCHIVE_NAME_PATTERN = Pattern.compile("\\.(apk|apks|xapk|zip|obb|jar|aab)$", Pattern.CASE_INSENSITIVE);
+
     public static class FileInfo
     {
         public enum Type
@@ -27,6 +35,7 @@ public class ApkTypeProvider
 
         private final Type fileType;
         private List<ZipEntry> zipFiles;
+        private long probeTimeNanos;
 
         public FileInfo(Type fileType)
         {
@@ -48,42 +57,50 @@ public class ApkTypeProvider
         {
             return zipFiles;
         }
+
+        /**
+         * Returns time spent classifying the file in nanoseconds.
+         */
+        public long getProbeTimeNanos()
+        {
+            return probeTimeNanos;
+        }
     }
 
+    /**
+     * Classifies file by central directory only, magic bytes are read just for nested archive candidates.
+     */
     public static FileInfo provideInfo(File zipOrApk)
+    {
+        long start = System.nanoTime();
+
+        FileInfo info = probe(zipOrApk);
+        info.probeTimeNanos = System.nanoTime() - start;
+
+        return info;
+    }
+
+    private static FileInfo probe(File zipOrApk)
     {
         try
         {
             FileInfo.Type fileType = null;
             List<ZipEntry> zipFiles = new ArrayList<>();
 
-            ZipFile zip = new ZipFile(zipOrApk);
-
-            Enumeration entries = zip.entries();
-
-            while (entries.hasMoreElements())
+            try (ApkArchive archive = new ApkArchive(zipOrApk))
             {
-                ZipEntry entry = (ZipEntry) entries.nextElement();
-                String name = entry.getName();
-
-                if (!entry.isDirectory() && fileType == null && (name.equals("AndroidManifest.xml") || name.endsWith(".dex")))
+                for (ApkArchive.Entry entry : archive.getEntries())
                 {
-                    fileType = FileInfo.Type.Apk;
-                }
+                    String name = entry.getName();
 
-                if (!entry.isDirectory())
-                {
-                    try(BufferedInputStream is = new BufferedInputStream(zip.getInputStream(entry)))
+                    if (!entry.isDirectory() && fileType == null && (name.equals("AndroidManifest.xml") || name.endsWith(".dex")))
                     {
-                        byte[] header = new byte[4];
-
-                        if(is.read(header, 0, 4) != -1)
-                        {
-                            if(ZipFileAware.isZip(header))
-                            {
-                                zipFiles.add(entry);
-                            }
-                        }
+                        fileType = FileInfo.Type.Apk;
+                    }
+
+                    if (isArchiveCandidate(entry) && ZipFileAware.isZip(readHeader(archive, entry)))
+                    {
+                        zipFiles.add(entry.toZipEntry());
                     }
                 }
             }
@@ -104,6 +121,35 @@ public class ApkTypeProvider
         return new FileInfo(FileInfo.Type.Unknown);
     }
 
+    private static boolean isArchiveCandidate(ApkArchive.Entry entry)
+    {
+        if (entry.isDirectory() || entry.getSize() < 4)
+            return false;
+
+        return entry.getMethod() == ZipEntry.STORED || ARCHIVE_NAME_PATTERN.matcher(entry.getName()).find();
+    }
+
+    /**
+     * Reads first 4 bytes of entry, stored entries are read directly from their data offset, without any stream.
+     */
+    private static byte[] readHeader(ApkArchive archive, ApkArchive.Entry entry) throws IOException
+    {
+        byte[] header = new byte[4];
+
+        if (entry.getSize() < header.length)
+            return null;
+
+        if (entry.getMethod() == ZipEntry.STORED)
+        {
+            archive.getRawData(entry, 0, header.length).get(header);
+            return header;
+        }
+
+        try (InputStream is = archive.getInputStream(entry))
+        {
+            return IOUtils.read(is, header) == header.length ? header : null;
+        }
+    }
 
     public static ZipFileAware provide(File tempFolder, File zipOrApk)
     {
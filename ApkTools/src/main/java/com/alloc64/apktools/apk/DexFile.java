@@ -13,6 +13,7 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
@@ -89,6 +90,8 @@ public class DexFile extends FileAware
 
     public void assemble(File outputFile) throws Exception
     {
+        // file may be linked to extraction cache, it is replaced instead of written in place
+        Files.deleteIfExists(outputFile.toPath());
         ApkTools.dex().assembleDEX(disassembledDexFolder, outputFile);
     }
 
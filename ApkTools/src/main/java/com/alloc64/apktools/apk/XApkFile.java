@@ -13,6 +13,9 @@ import net.lingala.zip4j.model.enums.CompressionMethod;
 import com.alloc64.apktools.FoldersLister;
 import com.alloc64.apktools.apk.tools.ApkTools;
 import com.alloc64.apktools.apk.tools.ApkZipper;
+import com.alloc64.apktools.apk.tools.ExtractionCache;
+import com.alloc64.apktools.apk.tools.ExtractionSnapshot;
+import com.alloc64.apktools.apk.tools.WorkingStorage;
 import com.alloc64.apktools.keystore.KeystoreInfo;
 
 import org.apache.commons.io.FileUtils;
@@ -40,6 +43,10 @@ public class XApkFile extends ZipFileAware
     private File xapkWorkingFolder;
     private File xapkUnzippedFolder;
 
+    private final ExtractionSnapshot extractionSnapshot = new ExtractionSnapshot();
+    private ExtractionCache extractionCache;
+    private WorkingStorage workingStorage;
+
     public XApkFile()
     {
 
@@ -66,6 +73,22 @@ public class XApkFile extends ZipFileAware
         return xapkUnzippedFolder;
     }
 
+    /**
+     * Unzipped folders of XAPK and its APKs are populated from cache.
+     */
+    public void setExtractionCache(ExtractionCache extractionCache)
+    {
+        this.extractionCache = extractionCache;
+    }
+
+    /**
+     * Working folders of APKs are allocated in workingStorage when they are resigned.
+     */
+    public void setWorkingStorage(WorkingStorage workingStorage)
+    {
+        this.workingStorage = workingStorage;
+    }
+
     public void setBaseFolder(File baseFolder)
     {
         this.baseFolder = baseFolder;
@@ -158,7 +181,12 @@ public class XApkFile extends ZipFileAware
 
         xapkWorkingFolder.mkdir();
 
-        ApkTools.zipper().unzip(xapkFile, xapkUnzippedFolder);
+        extractionSnapshot.clear();
+
+        if (extractionCache != null)
+            extractionCache.extract(xapkFile, xapkUnzippedFolder, extractionSnapshot);
+        else
+            ApkTools.zipper().unzip(xapkFile, xapkUnzippedFolder, extractionSnapshot);
     }
 
     public void disassemble() throws Exception
@@ -203,7 +231,8 @@ public class XApkFile extends ZipFileAware
 
             try
             {
-                apkFile = new ApkFile(xapkWorkingFolder, file);
+                apkFile = workingStorage != null ? new ApkFile(xapkWorkingFolder, file, workingStorage) : new ApkFile(xapkWorkingFolder, file);
+                apkFile.setExtractionCache(extractionCache);
 
                 apkFile.unzip();
 
@@ -226,7 +255,7 @@ public class XApkFile extends ZipFileAware
         File zippedFile = new File(tempFolder, String.format("%s.xapk", xapkBasename));
 
         ApkZipper zipper = new ApkZipper();
-        zipper.zip(xapkUnzippedFolder, zippedFile);
+        zipper.zip(xapkUnzippedFolder, zippedFile, xapkFile, null, extractionSnapshot);
 
         if (!zippedFile.exists())
             throw new IllegalStateException("Failed to zip file " + xapkFile + " to: " + zippedFile);
@@ -0,0 +1,112 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.apk.ApkArchive;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves alignment of stored entries by their names. Native libraries are page aligned by default (same as zipalign -p),
+ * so they can be loaded directly from APK, other entries are aligned to 4 bytes. Overrides are matched first, in order they were added.
+ * <p>
+ * Padding is stored in alignment extra field (0xd935) of local header, same as apksigner and zipalign do.
+ */
+public class AlignmentPolicy
+{
+    public static final int DEFAULT_ALIGNMENT = 4;
+    public static final int PAGE_ALIGNMENT = 4096;
+
+    public static final int ALIGNMENT_EXTRA_FIELD_ID = 0xd935;
+    private static final int ALIGNMENT_EXTRA_FIELD_LEN = 6;
+
+    private static final Pattern NATIVE_LIBRARY_PATTERN = Pattern.compile("\\.so$");
+    private static final byte[] ZEROS = new byte[PAGE_ALIGNMENT];
+
+    private final int defaultAlignment;
+    private final int nativeLibraryAlignment;
+    private final Map<Pattern, Integer> overrides = new LinkedHashMap<>();
+
+    public AlignmentPolicy()
+    {
+        this(DEFAULT_ALIGNMENT, PAGE_ALIGNMENT);
+    }
+
+    public AlignmentPolicy(int defaultAlignment, int nativeLibraryAlignment)
+    {
+        this.defaultAlignment = validate(defaultAlignment);
+        this.nativeLibraryAlignment = validate(nativeLibraryAlignment);
+    }
+
+    /**
+     * Entries with name matching regex are aligned to given boundary.
+     */
+    public AlignmentPolicy override(String regex, int alignment)
+    {
+        overrides.put(Pattern.compile(regex), validate(alignment));
+        return this;
+    }
+
+    public int getAlignment(String name)
+    {
+        for (Map.Entry<Pattern, Integer> kvp : overrides.entrySet())
+        {
+            if (kvp.getKey().matcher(name).find())
+                return kvp.getValue();
+        }
+
+        if (NATIVE_LIBRARY_PATTERN.matcher(name).find())
+            return nativeLibraryAlignment;
+
+        return defaultAlignment;
+    }
+
+    /**
+     * Removes alignment fields of previous alignment and trailing bytes which are not a well formed field
+     * (e.g. zero padding of older zipalign). Returns the same array when there is nothing to remove.
+     */
+    public static byte[] stripAlignmentField(byte[] extra)
+    {
+        return ApkArchive.removeExtraField(extra, ALIGNMENT_EXTRA_FIELD_ID);
+    }
+
+    /**
+     * Length of alignment extra field appended after extra field ending at dataOffset, so that entry data becomes aligned.
+     * Returns 0 when data is already aligned.
+     */
+    public static int getPaddingFieldLength(long dataOffset, int alignment)
+    {
+        if (alignment <= 1 || dataOffset % alignment == 0)
+            return 0;
+
+        return ALIGNMENT_EXTRA_FIELD_LEN + (int) ((alignment - (dataOffset + ALIGNMENT_EXTRA_FIELD_LEN) % alignment) % alignment);
+    }
+
+    public static void putPaddingField(ByteBuffer buffer, int length, int alignment)
+    {
+        if (length == 0)
+            return;
+
+        buffer.putShort((short) ALIGNMENT_EXTRA_FIELD_ID);
+        buffer.putShort((short) (length - 4));
+        buffer.putShort((short) alignment);
+
+        for (int remaining = length - ALIGNMENT_EXTRA_FIELD_LEN; remaining > 0; remaining -= ZEROS.length)
+            buffer.put(ZEROS, 0, Math.min(remaining, ZEROS.length));
+    }
+
+    private static int validate(int alignment)
+    {
+        if (alignment < 1 || alignment > 0xffff)
+            throw new IllegalArgumentException("Invalid alignment: " + alignment);
+
+        return alignment;
+    }
+}
@@ -6,31 +6,874 @@
 
 package com.alloc64.apktools.apk.tools;
 
-import com.alloc64.apktools.ProcessUtils;
+import com.alloc64.apktools.apk.ApkArchive;
+import com.alloc64.apktools.keystore.DerDecoder;
+import com.alloc64.apktools.keystore.DerEncoder;
 import com.alloc64.apktools.keystore.KeystoreInfo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
-public class ApkSigner extends ExtractableExecutable
+/**
+ * Signs APKs in-process with JAR signature (v1), APK Signature Scheme v2 and v3, and verifies them.
+ */
+public class ApkSigner
 {
-    public void sign(KeystoreInfo keystore, File outputApkFile) throws IOException, InterruptedException
+    public static class VerificationResult
     {
-        sign(keystore.getKeystoreFile(), outputApkFile, keystore.getAlias(), keystore.getPassphrase());
+        private boolean v1Verified;
+        private boolean v2Verified;
+        private boolean v3Verified;
+
+        private final List<String> errors = new ArrayList<>();
+
+        public boolean isVerified()
+        {
+            return errors.isEmpty() && (v1Verified || v2Verified || v3Verified);
+        }
+
+        public boolean isV1Verified()
+        {
+            return v1Verified;
+        }
+
+        public boolean isV2Verified()
+        {
+            return v2Verified;
+        }
+
+        public boolean isV3Verified()
+        {
+            return v3Verified;
+        }
+
+        public List<String> getErrors()
+        {
+            return errors;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("v1=%s, v2=%s, v3=%s, errors=%s", v1Verified, v2Verified, v3Verified, errors);
+        }
     }
 
-    public void sign(File keystoreFile, File outputApkFile, String alias, String password) throws IOException, InterruptedException
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512 = 0x0104;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final int SIGNATURE_ECDSA_WITH_SHA512 = 0x0202;
+    private static final int SIGNATURE_DSA_WITH_SHA256 = 0x0301;
+
+    private static final int STRIPPING_PROTECTION_ATTRIBUTE_ID = 0xbeeff00d;
+
+    private static final int V3_MIN_SDK_VERSION = 28;
+    private static final int V3_MAX_SDK_VERSION = Integer.MAX_VALUE;
+
+    /*
+     * Configuration is read once per call, so the signer can be shared by concurrent jobs, all other state is local to calls.
+     */
+    private volatile boolean v1SigningEnabled = true;
+    private volatile boolean v2SigningEnabled = true;
+    private volatile boolean v3SigningEnabled = true;
+
+    private volatile int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private final ApkZipalign zipalign = new ApkZipalign();
+
+    public void setV1SigningEnabled(boolean v1SigningEnabled)
+    {
+        this.v1SigningEnabled = v1SigningEnabled;
+    }
+
+    public void setV2SigningEnabled(boolean v2SigningEnabled)
     {
-        int statusCode = ProcessUtils.runProcessNoLogging("jarsigner", "-verbose", "-sigalg", "SHA1withRSA", "-digestalg", "SHA1", "-keystore", keystoreFile.getAbsolutePath(), outputApkFile.getAbsolutePath(), alias, "-storepass", password);
+        this.v2SigningEnabled = v2SigningEnabled;
+    }
 
-        if(statusCode > 0)
-            throw new IllegalStateException("Unable to sign APK: " + outputApkFile + " non-zero status code returned (" + statusCode + ")");
+    public void setV3SigningEnabled(boolean v3SigningEnabled)
+    {
+        this.v3SigningEnabled = v3SigningEnabled;
+    }
 
-        System.out.println("Signed APK: " + outputApkFile);
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Number of threads used for entry and content digests.
+     */
+    public void setThreadCount(int threadCount)
+    {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Signs APK in place with all enabled schemes. Existing signatures are replaced, stored entries are aligned.
+     * Key and signature failures are reported as IOException, InterruptedException is kept for source compatibility
+     * with jarsigner based implementation.
+     */
+    public void sign(KeystoreInfo keystore, File apkFile) throws IOException, InterruptedException
+    {
+        File tempFile = new File(apkFile.getAbsoluteFile().getParentFile(), apkFile.getName() + ".tmp");
+
+        try
+        {
+            if (v1SigningEnabled)
+                signV1(keystore, apkFile, tempFile);
+            else
+            {
+                Files.copy(apkFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                zipalign.zipalignInPlace(tempFile);
+            }
+
+            addSigningBlock(keystore, tempFile);
+
+            Files.move(tempFile.toPath(), apkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Unable to sign APK: " + apkFile, e);
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+
+        System.out.println("Signed APK: " + apkFile);
+    }
+
+    public void sign(File keystoreFile, File outputApkFile, String alias, String password) throws IOException, InterruptedException
+    {
+        sign(new KeystoreInfo(keystoreFile, alias, password), outputApkFile);
     }
 
     public void signWithAndroidDebugKey(File keystoreFile, File outputApkFile) throws IOException, InterruptedException
     {
         sign(keystoreFile, outputApkFile, "androiddebugkey", "android");
     }
+
+    /**
+     * Creates JAR signer for APK writers, signature file is marked with v2/v3 schemes which are going to be added
+     * by {@link #addSigningBlock(KeystoreInfo, File)}, so that stripping of them can be detected.
+     */
+    public ApkV1SchemeSigner createV1Signer(KeystoreInfo keystore) throws IOException, GeneralSecurityException
+    {
+        ApkV1SchemeSigner signer = new ApkV1SchemeSigner(keystore);
+
+        boolean v2 = v2SigningEnabled;
+        boolean v3 = v3SigningEnabled;
+
+        if (v2 && v3)
+            signer.setSignatureAttribute("X-Android-APK-Signed", "2, 3");
+        else if (v2)
+            signer.setSignatureAttribute("X-Android-APK-Signed", "2");
+        else if (v3)
+            signer.setSignatureAttribute("X-Android-APK-Signed", "3");
+
+        return signer;
+    }
+
+    /**
+     * Adds v2/v3 signatures (as enabled) to APK in place. Entries are not touched, so APK must be aligned
+     * and v1 signed already if needed.
+     */
+    public void addSigningBlock(KeystoreInfo keystore, File apkFile) throws IOException, GeneralSecurityException
+    {
+        boolean v2 = v2SigningEnabled;
+        boolean v3 = v3SigningEnabled;
+
+        if (!v2 && !v3)
+            return;
+
+        PrivateKey privateKey = keystore.getPrivateKey();
+        X509Certificate certificate = keystore.getCertificate();
+
+        int signatureAlgorithm = getSignatureAlgorithm(privateKey);
+
+        try (FileChannel channel = FileChannel.open(apkFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ApkSigningBlock block = new ApkSigningBlock(channel);
+
+            byte[] contentDigest = block.computeContentDigest(getContentDigestAlgorithm(signatureAlgorithm), threadCount);
+
+            Map<Integer, byte[]> values = new LinkedHashMap<>();
+
+            if (v2)
+                values.put(ApkSigningBlock.SIGNATURE_SCHEME_V2_BLOCK_ID, createSchemeBlock(false, v3, privateKey, certificate, signatureAlgorithm, contentDigest));
+
+            if (v3)
+                values.put(ApkSigningBlock.SIGNATURE_SCHEME_V3_BLOCK_ID, createSchemeBlock(true, v3, privateKey, certificate, signatureAlgorithm, contentDigest));
+
+            block.write(values);
+        }
+    }
+
+    /**
+     * Verifies all signatures present in APK, content digests are computed in the same way as for signing.
+     */
+    public VerificationResult verify(File apkFile) throws IOException
+    {
+        VerificationResult result = new VerificationResult();
+
+        try (ApkArchive archive = new ApkArchive(apkFile))
+        {
+            ApkSigningBlock block = new ApkSigningBlock(archive.getChannel());
+            Map<String, byte[]> contentDigests = new HashMap<>();
+
+            result.v2Verified = verifySchemeBlock(block, false, contentDigests, result);
+            result.v3Verified = verifySchemeBlock(block, true, contentDigests, result);
+            result.v1Verified = verifyV1(archive, result);
+
+            if (!result.v1Verified && !result.v2Verified && !result.v3Verified && result.errors.isEmpty())
+                result.errors.add("APK is not signed: " + apkFile);
+        }
+
+        return result;
+    }
+
+    private void signV1(KeystoreInfo keystore, File apkFile, File outputFile) throws IOException, GeneralSecurityException
+    {
+        ApkV1SchemeSigner signer = createV1Signer(keystore);
+
+        try (ApkArchive archive = new ApkArchive(apkFile))
+        {
+            List<ApkArchive.Entry> entries = new ArrayList<>();
+
+            for (ApkArchive.Entry entry : archive.getEntries())
+            {
+                if (!ApkV1SchemeSigner.isSignatureFile(entry.getName()))
+                    entries.add(entry);
+            }
+
+            byte[][] digests = digestEntries(archive, entries, ApkV1SchemeSigner.DIGEST_ALGORITHM);
+
+            try (ApkZipWriter writer = new ApkZipWriter(outputFile))
+            {
+                writer.setComment(archive.getComment());
+                writer.setAlignmentPolicy(new AlignmentPolicy());
+                writer.setV1Signer(signer);
+
+                for (int i = 0; i < entries.size(); i++)
+                    writer.copyEntry(archive, entries.get(i), digests[i]);
+            }
+        }
+    }
+
+    private static byte[] createSchemeBlock(boolean v3, boolean v3Enabled, PrivateKey privateKey, X509Certificate certificate, int signatureAlgorithm, byte[] contentDigest) throws GeneralSecurityException
+    {
+        byte[] digests = lengthPrefixed(lengthPrefixed(intLE(signatureAlgorithm), lengthPrefixed(contentDigest)));
+        byte[] certificates = lengthPrefixed(lengthPrefixed(certificate.getEncoded()));
+
+        byte[] signedData;
+
+        if (v3)
+        {
+            signedData = DerEncoder.concat(digests, certificates, intLE(V3_MIN_SDK_VERSION), intLE(V3_MAX_SDK_VERSION), lengthPrefixed());
+        }
+        else
+        {
+            byte[] attributes = v3Enabled ? lengthPrefixed(lengthPrefixed(intLE(STRIPPING_PROTECTION_ATTRIBUTE_ID), intLE(3))) : lengthPrefixed();
+            signedData = DerEncoder.concat(digests, certificates, attributes);
+        }
+
+        Signature signature = Signature.getInstance(getJcaSignatureAlgorithm(signatureAlgorithm));
+        signature.initSign(privateKey);
+        signature.update(signedData);
+
+        byte[] signatures = lengthPrefixed(lengthPrefixed(intLE(signatureAlgorithm), lengthPrefixed(signature.sign())));
+        byte[] publicKey = lengthPrefixed(certificate.getPublicKey().getEncoded());
+
+        byte[] signer;
+
+        if (v3)
+            signer = lengthPrefixed(lengthPrefixed(signedData), intLE(V3_MIN_SDK_VERSION), intLE(V3_MAX_SDK_VERSION), signatures, publicKey);
+        else
+            signer = lengthPrefixed(lengthPrefixed(signedData), signatures, publicKey);
+
+        return lengthPrefixed(signer);
+    }
+
+    private boolean verifySchemeBlock(ApkSigningBlock block, boolean v3, Map<String, byte[]> contentDigests, VerificationResult result) throws IOException
+    {
+        byte[] value = block.getValue(v3 ? ApkSigningBlock.SIGNATURE_SCHEME_V3_BLOCK_ID : ApkSigningBlock.SIGNATURE_SCHEME_V2_BLOCK_ID);
+
+        if (value == null)
+            return false;
+
+        String scheme = v3 ? "v3" : "v2";
+        int errorCount = result.errors.size();
+
+        try
+        {
+            ByteBuffer signers = lengthPrefixedSlice(ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN));
+
+            if (!signers.hasRemaining())
+                result.errors.add(scheme + ": no signers");
+
+            while (signers.hasRemaining())
+            {
+                ByteBuffer signer = lengthPrefixedSlice(signers);
+                ByteBuffer signedData = lengthPrefixedSlice(signer);
+
+                int minSdkVersion = v3 ? signer.getInt() : 0;
+                int maxSdkVersion = v3 ? signer.getInt() : 0;
+
+                ByteBuffer signatures = lengthPrefixedSlice(signer);
+                byte[] publicKeyBytes = toArray(lengthPrefixedSlice(signer));
+
+                int signatureAlgorithm = -1;
+                byte[] signatureBytes = null;
+
+                while (signatures.hasRemaining())
+                {
+                    ByteBuffer signature = lengthPrefixedSlice(signatures);
+                    int algorithm = signature.getInt();
+
+                    if (getJcaSignatureAlgorithm(algorithm) != null && signatureBytes == null)
+                    {
+                        signatureAlgorithm = algorithm;
+                        signatureBytes = toArray(lengthPrefixedSlice(signature));
+                    }
+                }
+
+                if (signatureBytes == null)
+                {
+                    result.errors.add(scheme + ": no supported signature");
+                    continue;
+                }
+
+                PublicKey publicKey = KeyFactory.getInstance(getKeyAlgorithm(signatureAlgorithm)).generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+
+                Signature signature = Signature.getInstance(getJcaSignatureAlgorithm(signatureAlgorithm));
+                signature.initVerify(publicKey);
+                signature.update(signedData.duplicate());
+
+                if (!signature.verify(signatureBytes))
+                {
+                    result.errors.add(scheme + ": signature did not verify");
+                    continue;
+                }
+
+                ByteBuffer digests = lengthPrefixedSlice(signedData);
+                ByteBuffer certificates = lengthPrefixedSlice(signedData);
+
+                if (v3 && (signedData.getInt() != minSdkVersion || signedData.getInt() != maxSdkVersion))
+                    result.errors.add(scheme + ": SDK versions of signer and signed data do not match");
+
+                byte[] expectedDigest = null;
+
+                while (digests.hasRemaining())
+                {
+                    ByteBuffer digest = lengthPrefixedSlice(digests);
+
+                    if (digest.getInt() == signatureAlgorithm)
+                        expectedDigest = toArray(lengthPrefixedSlice(digest));
+                }
+
+                String digestAlgorithm = getContentDigestAlgorithm(signatureAlgorithm);
+                byte[] contentDigest = contentDigests.get(digestAlgorithm);
+
+                if (contentDigest == null)
+                {
+                    contentDigest = block.computeContentDigest(digestAlgorithm, threadCount);
+                    contentDigests.put(digestAlgorithm, contentDigest);
+                }
+
+                if (!Arrays.equals(expectedDigest, contentDigest))
+                    result.errors.add(scheme + ": APK content digest does not match");
+
+                if (!certificates.hasRemaining())
+                {
+                    result.errors.add(scheme + ": no certificates");
+                    continue;
+                }
+
+                Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(toArray(lengthPrefixedSlice(certificates))));
+
+                if (!Arrays.equals(certificate.getPublicKey().getEncoded(), publicKeyBytes))
+                    result.errors.add(scheme + ": public key does not match certificate");
+            }
+        }
+        catch (GeneralSecurityException | RuntimeException e)
+        {
+            result.errors.add(scheme + ": malformed signature block (" + e + ")");
+        }
+
+        return result.errors.size() == errorCount;
+    }
+
+    private boolean verifyV1(ApkArchive archive, VerificationResult result) throws IOException
+    {
+        ApkArchive.Entry manifestEntry = archive.getEntry(ApkV1SchemeSigner.MANIFEST_NAME);
+
+        List<ApkArchive.Entry> signatureFiles = new ArrayList<>();
+
+        for (ApkArchive.Entry entry : archive.getEntries())
+        {
+            String name = entry.getName();
+
+            if (ApkV1SchemeSigner.isSignatureFile(name) && name.toUpperCase().endsWith(".SF"))
+                signatureFiles.add(entry);
+        }
+
+        if (manifestEntry == null || signatureFiles.isEmpty())
+            return false;
+
+        int errorCount = result.errors.size();
+
+        try
+        {
+            byte[] manifestBytes = read(archive, manifestEntry);
+
+            for (ApkArchive.Entry signatureFile : signatureFiles)
+            {
+                byte[] signatureFileBytes = read(archive, signatureFile);
+                String baseName = signatureFile.getName().substring(0, signatureFile.getName().length() - 3);
+
+                ApkArchive.Entry blockEntry = null;
+
+                for (String extension : new String[]{".RSA", ".EC", ".DSA"})
+                {
+                    if (blockEntry == null)
+                        blockEntry = archive.getEntry(baseName + extension);
+                }
+
+                if (blockEntry == null)
+                {
+                    result.errors.add("v1: signature block of " + signatureFile.getName() + " not found");
+                    continue;
+                }
+
+                verifyV1SignatureBlock(signatureFileBytes, read(archive, blockEntry), signatureFile.getName(), result);
+
+                Attributes attributes = new Manifest(new ByteArrayInputStream(signatureFileBytes)).getMainAttributes();
+                String manifestDigest = null;
+                String algorithm = null;
+
+                for (Object key : attributes.keySet())
+                {
+                    String name = key.toString();
+
+                    if (name.endsWith("-Digest-Manifest"))
+                    {
+                        manifestDigest = attributes.getValue(name);
+                        algorithm = toDigestAlgorithm(name.substring(0, name.length() - "-Digest-Manifest".length()));
+                    }
+                }
+
+                if (manifestDigest == null || !manifestDigest.equals(Base64.getEncoder().encodeToString(MessageDigest.getInstance(algorithm).digest(manifestBytes))))
+                    result.errors.add("v1: digest of manifest does not match " + signatureFile.getName());
+            }
+
+            Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+
+            List<ApkArchive.Entry> entries = new ArrayList<>();
+            List<String> expectedDigests = new ArrayList<>();
+            Map<String, List<Integer>> entriesByAlgorithm = new HashMap<>();
+
+            for (ApkArchive.Entry entry : archive.getEntries())
+            {
+                if (entry.isDirectory() || ApkV1SchemeSigner.isSignatureFile(entry.getName()))
+                    continue;
+
+                Attributes attributes = manifest.getAttributes(entry.getName());
+                String digestName = null;
+
+                if (attributes != null)
+                {
+                    for (Object key : attributes.keySet())
+                    {
+                        if (key.toString().endsWith("-Digest"))
+                            digestName = key.toString();
+                    }
+                }
+
+                if (digestName == null)
+                {
+                    result.errors.add("v1: entry not signed: " + entry.getName());
+                    continue;
+                }
+
+                String algorithm = toDigestAlgorithm(digestName.substring(0, digestName.length() - "-Digest".length()));
+
+                entriesByAlgorithm.computeIfAbsent(algorithm, k -> new ArrayList<>()).add(entries.size());
+                entries.add(entry);
+                expectedDigests.add(attributes.getValue(digestName));
+            }
+
+            for (String name : manifest.getEntries().keySet())
+            {
+                if (archive.getEntry(name) == null)
+                    result.errors.add("v1: entry listed in manifest not found: " + name);
+            }
+
+            for (Map.Entry<String, List<Integer>> kvp : entriesByAlgorithm.entrySet())
+            {
+                List<ApkArchive.Entry> algorithmEntries = new ArrayList<>();
+
+                for (int i : kvp.getValue())
+                    algorithmEntries.add(entries.get(i));
+
+                byte[][] digests = digestEntries(archive, algorithmEntries, kvp.getKey());
+
+                for (int i = 0; i < digests.length; i++)
+                {
+                    int index = kvp.getValue().get(i);
+
+                    if (!Base64.getEncoder().encodeToString(digests[i]).equals(expectedDigests.get(index)))
+                        result.errors.add("v1: digest does not match: " + entries.get(index).getName());
+                }
+            }
+        }
+        catch (ZipException e)
+        {
+            result.errors.add("v1: corrupted entry (" + e.getMessage() + ")");
+        }
+        catch (GeneralSecurityException | RuntimeException e)
+        {
+            result.errors.add("v1: malformed signature (" + e + ")");
+        }
+
+        return result.errors.size() == errorCount;
+    }
+
+    /**
+     * Verifies PKCS#7 signature block against signature file, authenticated attributes are supported.
+     */
+    private void verifyV1SignatureBlock(byte[] signatureFileBytes, byte[] block, String name, VerificationResult result) throws GeneralSecurityException
+    {
+        byte[] signedData = DerDecoder.children(DerDecoder.children(block).get(1)).get(0);
+        List<byte[]> signedDataItems = DerDecoder.children(signedData);
+
+        byte[] signerInfos = signedDataItems.get(signedDataItems.size() - 1);
+        List<byte[]> signerInfo = DerDecoder.children(DerDecoder.children(signerInfos).get(0));
+
+        BigInteger serialNumber = new BigInteger(DerDecoder.content(DerDecoder.children(signerInfo.get(1)).get(1)));
+        String digestAlgorithm = toDigestAlgorithmByOid(DerDecoder.oid(DerDecoder.children(signerInfo.get(2)).get(0)));
+
+        byte[] authenticatedAttributes = null;
+        int index = 3;
+
+        if (DerDecoder.tag(signerInfo.get(index)) == 0xa0)
+            authenticatedAttributes = signerInfo.get(index++);
+
+        byte[] signatureBytes = DerDecoder.content(signerInfo.get(index + 1));
+
+        X509Certificate certificate = null;
+
+        for (Certificate c : CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(block)))
+        {
+            if (c instanceof X509Certificate && ((X509Certificate) c).getSerialNumber().equals(serialNumber))
+                certificate = (X509Certificate) c;
+        }
+
+        if (certificate == null)
+        {
+            result.errors.add("v1: signer certificate not found in " + name);
+            return;
+        }
+
+        byte[] data = signatureFileBytes;
+
+        if (authenticatedAttributes != null)
+        {
+            byte[] messageDigest = null;
+
+            for (byte[] attribute : DerDecoder.children(authenticatedAttributes))
+            {
+                List<byte[]> items = DerDecoder.children(attribute);
+
+                if ("1.2.840.113549.1.9.4".equals(DerDecoder.oid(items.get(0))))
+                    messageDigest = DerDecoder.content(DerDecoder.children(items.get(1)).get(0));
+            }
+
+            if (!Arrays.equals(messageDigest, MessageDigest.getInstance(digestAlgorithm).digest(signatureFileBytes)))
+                result.errors.add("v1: message digest of " + name + " does not match");
+
+            data = authenticatedAttributes.clone();
+            data[0] = 0x31;
+        }
+
+        String keyAlgorithm = certificate.getPublicKey().getAlgorithm();
+
+        Signature signature = Signature.getInstance(digestAlgorithm.replace("-", "") + "with" + ("EC".equals(keyAlgorithm) ? "ECDSA" : keyAlgorithm));
+        signature.initVerify(certificate.getPublicKey());
+        signature.update(data);
+
+        if (!signature.verify(signatureBytes))
+            result.errors.add("v1: signature of " + name + " did not verify");
+    }
+
+    /**
+     * Computes digests of uncompressed content of entries, partitions of entries are processed in parallel.
+     */
+    private byte[][] digestEntries(ApkArchive archive, List<ApkArchive.Entry> entries, String algorithm) throws IOException
+    {
+        byte[][] digests = new byte[entries.size()][];
+
+        int partitions = Math.max(1, Math.min(threadCount, entries.size()));
+
+        if (partitions == 1)
+        {
+            digestEntries(archive, entries, algorithm, digests, 0, entries.size());
+            return digests;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+
+        try
+        {
+            List<Future<Void>> futureList = new ArrayList<>();
+
+            for (int i = 0; i < partitions; i++)
+            {
+                final int from = entries.size() * i / partitions;
+                final int to = entries.size() * (i + 1) / partitions;
+
+                futureList.add(executor.submit(() ->
+                {
+                    digestEntries(archive, entries, algorithm, digests, from, to);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futureList)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+
+                    throw new IllegalStateException("Unable to digest entries of: " + archive.getFile(), e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while digesting entries of: " + archive.getFile());
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        return digests;
+    }
+
+    private static void digestEntries(ApkArchive archive, List<ApkArchive.Entry> entries, String algorithm, byte[][] digests, int from, int to) throws IOException
+    {
+        MessageDigest digest = ApkSigningBlock.createDigest(algorithm);
+        CodecPool codecs = CodecPool.shared();
+        Inflater inflater = codecs.acquireInflater();
+        byte[] buffer = codecs.acquireArray(64 * 1024);
+
+        try
+        {
+            for (int i = from; i < to; i++)
+            {
+                ApkArchive.Entry entry = entries.get(i);
+
+                if (entry.isDirectory())
+                    continue;
+
+                try (InputStream is = archive.getInputStream(entry, inflater))
+                {
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) != -1)
+                        digest.update(buffer, 0, bytesRead);
+                }
+
+                digests[i] = digest.digest();
+            }
+        }
+        finally
+        {
+            codecs.release(inflater);
+            codecs.release(buffer);
+        }
+    }
+
+    private static byte[] read(ApkArchive archive, ApkArchive.Entry entry) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream((int) entry.getSize());
+        byte[] buffer = new byte[8192];
+
+        try (InputStream is = archive.getInputStream(entry))
+        {
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1)
+                os.write(buffer, 0, bytesRead);
+        }
+
+        return os.toByteArray();
+    }
+
+    private static int getSignatureAlgorithm(PrivateKey privateKey) throws GeneralSecurityException
+    {
+        switch (privateKey.getAlgorithm())
+        {
+            case "RSA":
+                return SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256;
+
+            case "EC":
+                return SIGNATURE_ECDSA_WITH_SHA256;
+
+            case "DSA":
+                return SIGNATURE_DSA_WITH_SHA256;
+
+            default:
+                throw new GeneralSecurityException("Unsupported signing key algorithm: " + privateKey.getAlgorithm());
+        }
+    }
+
+    private static String getJcaSignatureAlgorithm(int signatureAlgorithm)
+    {
+        switch (signatureAlgorithm)
+        {
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+                return "SHA256withRSA";
+
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+                return "SHA512withRSA";
+
+            case SIGNATURE_ECDSA_WITH_SHA256:
+                return "SHA256withECDSA";
+
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return "SHA512withECDSA";
+
+            case SIGNATURE_DSA_WITH_SHA256:
+                return "SHA256withDSA";
+
+            default:
+                return null;
+        }
+    }
+
+    private static String getKeyAlgorithm(int signatureAlgorithm)
+    {
+        switch (signatureAlgorithm >> 8)
+        {
+            case 0x01:
+                return "RSA";
+
+            case 0x02:
+                return "EC";
+
+            default:
+                return "DSA";
+        }
+    }
+
+    private static String getContentDigestAlgorithm(int signatureAlgorithm)
+    {
+        return signatureAlgorithm == SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512 || signatureAlgorithm == SIGNATURE_ECDSA_WITH_SHA512 ? "SHA-512" : "SHA-256";
+    }
+
+    /**
+     * Maps digest attribute prefix of JAR manifest (e.g. SHA1, SHA-256) to JCA algorithm name.
+     */
+    private static String toDigestAlgorithm(String name)
+    {
+        return "SHA1".equalsIgnoreCase(name) ? "SHA-1" : name.toUpperCase();
+    }
+
+    private static String toDigestAlgorithmByOid(String oid) throws GeneralSecurityException
+    {
+        switch (oid)
+        {
+            case "1.3.14.3.2.26":
+                return "SHA-1";
+
+            case "2.16.840.1.101.3.4.2.1":
+                return "SHA-256";
+
+            case "2.16.840.1.101.3.4.2.2":
+                return "SHA-384";
+
+            case "2.16.840.1.101.3.4.2.3":
+                return "SHA-512";
+
+            default:
+                throw new GeneralSecurityException("Unsupported digest algorithm: " + oid);
+        }
+    }
+
+    private static byte[] lengthPrefixed(byte[]... items)
+    {
+        byte[] content = DerEncoder.concat(items);
+
+        return DerEncoder.concat(intLE(content.length), content);
+    }
+
+    private static ByteBuffer lengthPrefixedSlice(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Length-prefixed value out of bounds: " + length);
+
+        ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+
+        buffer.position(buffer.position() + length);
+
+        return slice;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer)
+    {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+
+        return result;
+    }
+
+    private static byte[] intLE(int value)
+    {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
 }
@@ -0,0 +1,400 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.apk.ApkArchive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipException;
+
+/**
+ * APK Signing Block, stored between last entry data and central directory. Holds ID-value pairs,
+ * signatures of APK Signature Scheme v2 and v3 among them.
+ * <p>
+ * APK is split into three sections covered by the content digest: entries (up to signing block),
+ * central directory and end of central directory record.
+ */
+public class ApkSigningBlock
+{
+    public static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    public static final int SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+
+    private static final byte[] MAGIC = "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+    private static final int FOOTER_LEN = 8 + 16;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_COMMENT_LEN = 0xffff;
+
+    private final FileChannel channel;
+
+    private final long contentsEnd;
+    private final byte[] centralDirectory;
+    private final byte[] endOfCentralDirectory;
+
+    private final Map<Integer, byte[]> values = new LinkedHashMap<>();
+
+    /**
+     * Locates sections of APK opened in channel and reads existing signing block, if any.
+     */
+    public ApkSigningBlock(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        long fileSize = channel.size();
+
+        if (fileSize < ApkArchive.END_HEADER_LEN)
+            throw new ZipException("File too short to be a ZIP archive.");
+
+        int length = (int) Math.min(fileSize, ApkArchive.END_HEADER_LEN + MAX_COMMENT_LEN);
+        ByteBuffer tail = read(fileSize - length, length);
+
+        int position = -1;
+
+        for (int i = length - ApkArchive.END_HEADER_LEN; i >= 0; i--)
+        {
+            if (tail.getInt(i) == ApkArchive.END_HEADER_SIGNATURE && i + ApkArchive.END_HEADER_LEN + (tail.getShort(i + 20) & 0xffff) == length)
+            {
+                position = i;
+                break;
+            }
+        }
+
+        if (position < 0)
+            throw new ZipException("End of central directory not found.");
+
+        this.endOfCentralDirectory = new byte[length - position];
+        tail.position(position);
+        tail.get(endOfCentralDirectory);
+
+        long centralDirectorySize = tail.getInt(position + 12) & 0xffffffffL;
+        long centralDirectoryOffset = tail.getInt(position + 16) & 0xffffffffL;
+
+        if (centralDirectorySize == ApkArchive.ZIP64_MAGIC || centralDirectoryOffset == ApkArchive.ZIP64_MAGIC)
+            throw new ZipException("ZIP64 archives are not supported by APK signature schemes.");
+
+        if (centralDirectoryOffset + centralDirectorySize != fileSize - length + position)
+            throw new ZipException("Central directory is not immediately followed by end of central directory record.");
+
+        this.centralDirectory = read(centralDirectoryOffset, (int) centralDirectorySize).array();
+        this.contentsEnd = readBlock(centralDirectoryOffset);
+    }
+
+    public boolean isPresent()
+    {
+        return !values.isEmpty();
+    }
+
+    public byte[] getValue(int id)
+    {
+        return values.get(id);
+    }
+
+    /**
+     * Offset of signing block (or central directory, if there is none), data before it is covered by content digest.
+     */
+    public long getContentsEnd()
+    {
+        return contentsEnd;
+    }
+
+    /**
+     * Computes chunked content digest used by v2 and v3 schemes. Chunks of 1 MB are digested in parallel,
+     * top-level digest is computed over chunk digests in order.
+     */
+    public byte[] computeContentDigest(String algorithm, int threadCount) throws IOException
+    {
+        int sectionOneChunks = chunkCount(contentsEnd);
+        int sectionTwoChunks = chunkCount(centralDirectory.length);
+        int chunkCount = sectionOneChunks + sectionTwoChunks + chunkCount(endOfCentralDirectory.length);
+
+        byte[] endOfCentralDirectory = this.endOfCentralDirectory.clone();
+        ByteBuffer.wrap(endOfCentralDirectory).order(ByteOrder.LITTLE_ENDIAN).putInt(16, (int) contentsEnd);
+
+        int digestLength = createDigest(algorithm).getDigestLength();
+        byte[] chunkDigests = new byte[chunkCount * digestLength];
+
+        int partitions = Math.max(1, Math.min(threadCount, sectionOneChunks));
+
+        if (partitions == 1)
+        {
+            digestChunks(algorithm, chunkDigests, endOfCentralDirectory, sectionOneChunks, sectionTwoChunks, 0, chunkCount);
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(partitions);
+
+            try
+            {
+                List<Future<Void>> futureList = new ArrayList<>();
+
+                for (int i = 0; i < partitions; i++)
+                {
+                    final int from = (int) ((long) chunkCount * i / partitions);
+                    final int to = (int) ((long) chunkCount * (i + 1) / partitions);
+
+                    futureList.add(executor.submit(() ->
+                    {
+                        digestChunks(algorithm, chunkDigests, endOfCentralDirectory, sectionOneChunks, sectionTwoChunks, from, to);
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> future : futureList)
+                    get(future);
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        MessageDigest digest = createDigest(algorithm);
+        digest.update((byte) 0x5a);
+        digest.update(intLE(chunkCount));
+        digest.update(chunkDigests);
+
+        return digest.digest();
+    }
+
+    /**
+     * Replaces signing block with new one containing given values, central directory and its end are moved behind it.
+     * Channel must be writable.
+     */
+    public void write(Map<Integer, byte[]> values) throws IOException
+    {
+        byte[] block = encode(values);
+
+        ByteBuffer endOfCentralDirectory = ByteBuffer.wrap(this.endOfCentralDirectory.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        endOfCentralDirectory.putInt(16, (int) (contentsEnd + block.length));
+
+        long position = contentsEnd;
+
+        position = write(ByteBuffer.wrap(block), position);
+        position = write(ByteBuffer.wrap(centralDirectory), position);
+        position = write(endOfCentralDirectory, position);
+
+        channel.truncate(position);
+
+        this.values.clear();
+        this.values.putAll(values);
+    }
+
+    private static byte[] encode(Map<Integer, byte[]> values)
+    {
+        long size = FOOTER_LEN;
+
+        for (byte[] value : values.values())
+            size += 8 + 4 + value.length;
+
+        ByteBuffer block = ByteBuffer.allocate((int) (size + 8)).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(size);
+
+        for (Map.Entry<Integer, byte[]> kvp : values.entrySet())
+        {
+            block.putLong(4 + kvp.getValue().length);
+            block.putInt(kvp.getKey());
+            block.put(kvp.getValue());
+        }
+
+        block.putLong(size);
+        block.put(MAGIC);
+
+        return block.array();
+    }
+
+    /**
+     * Parses signing block ending at central directory, returns its offset.
+     */
+    private long readBlock(long centralDirectoryOffset) throws IOException
+    {
+        if (centralDirectoryOffset < FOOTER_LEN + 8)
+            return centralDirectoryOffset;
+
+        ByteBuffer footer = read(centralDirectoryOffset - FOOTER_LEN, FOOTER_LEN);
+
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (footer.get(8 + i) != MAGIC[i])
+                return centralDirectoryOffset;
+        }
+
+        long size = footer.getLong(0);
+        long blockOffset = centralDirectoryOffset - size - 8;
+
+        if (size < FOOTER_LEN || size > Integer.MAX_VALUE - 8 || blockOffset < 0)
+            throw new ZipException("Invalid APK Signing Block size: " + size);
+
+        ByteBuffer block = read(blockOffset, (int) (size + 8));
+
+        if (block.getLong(0) != size)
+            throw new ZipException("APK Signing Block sizes do not match.");
+
+        block.position(8);
+        block.limit((int) (size + 8 - FOOTER_LEN));
+
+        while (block.hasRemaining())
+        {
+            if (block.remaining() < 12)
+                throw new ZipException("Truncated ID-value pair in APK Signing Block.");
+
+            long length = block.getLong();
+
+            if (length < 4 || length > block.remaining())
+                throw new ZipException("Invalid ID-value pair length in APK Signing Block: " + length);
+
+            int id = block.getInt();
+            byte[] value = new byte[(int) length - 4];
+            block.get(value);
+
+            values.put(id, value);
+        }
+
+        return blockOffset;
+    }
+
+    private void digestChunks(String algorithm, byte[] chunkDigests, byte[] endOfCentralDirectory, int sectionOneChunks, int sectionTwoChunks, int from, int to) throws IOException
+    {
+        MessageDigest digest = createDigest(algorithm);
+        int digestLength = digest.getDigestLength();
+
+        ByteBuffer buffer = from < sectionOneChunks ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+
+        for (int i = from; i < to; i++)
+        {
+            byte[] data;
+            int offset;
+            int length;
+
+            if (i < sectionOneChunks)
+            {
+                long position = (long) i * CHUNK_SIZE;
+                length = (int) Math.min(CHUNK_SIZE, contentsEnd - position);
+
+                buffer.clear();
+                buffer.limit(length);
+                readFully(buffer, position);
+
+                data = buffer.array();
+                offset = 0;
+            }
+            else if (i < sectionOneChunks + sectionTwoChunks)
+            {
+                data = centralDirectory;
+                offset = (i - sectionOneChunks) * CHUNK_SIZE;
+                length = Math.min(CHUNK_SIZE, data.length - offset);
+            }
+            else
+            {
+                data = endOfCentralDirectory;
+                offset = 0;
+                length = data.length;
+            }
+
+            digest.update((byte) 0xa5);
+            digest.update(intLE(length));
+            digest.update(data, offset, length);
+
+            try
+            {
+                digest.digest(chunkDigests, i * digestLength, digestLength);
+            }
+            catch (DigestException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, position);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead < 0)
+                throw new EOFException("Unexpected end of APK at offset " + position);
+
+            position += bytesRead;
+        }
+    }
+
+    private long write(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+
+        return position;
+    }
+
+    private static int chunkCount(long length)
+    {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static byte[] intLE(int value)
+    {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    static MessageDigest createDigest(String algorithm)
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void get(Future<Void> future) throws IOException
+    {
+        try
+        {
+            future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IllegalStateException("Unable to compute content digest.", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing content digest.");
+        }
+    }
+}
@@ -23,6 +23,22 @@ public class ApkTools
         adb = new Adb();
     }
 
+    /**
+     * Deflaters, inflaters and buffers shared by zipping, unzipping, signing and zipalign.
+     */
+    public static CodecPool codecs()
+    {
+        return CodecPool.shared();
+    }
+
+    /**
+     * CRC32 of files, large files are hashed in parallel.
+     */
+    public static ChunkedCrc32 crc()
+    {
+        return ChunkedCrc32.shared();
+    }
+
     public static ApkZipper zipper()
     {
         return apkZipper;
@@ -0,0 +1,258 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.keystore.DerEncoder;
+import com.alloc64.apktools.keystore.KeystoreInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Builds JAR signature (APK Signature Scheme v1) from entry digests collected while the APK is written,
+ * same as jarsigner with -digestalg SHA1 does, without a second pass over the archive.
+ */
+public class ApkV1SchemeSigner
+{
+    public static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    private static final Pattern SIGNATURE_FILE_PATTERN = Pattern.compile("^META-INF/([^/]+\\.(SF|RSA|DSA|EC)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
+
+    static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final String DIGEST_ATTRIBUTE = "SHA1-Digest";
+    private static final String DIGEST_ALGORITHM_OID = "1.3.14.3.2.26";
+
+    private static final String SIGNATURE_NAME = "CERT";
+    private static final String CREATED_BY = "1.0 (ApkTools)";
+
+    private static final int MANIFEST_LINE_LENGTH = 72;
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+
+    private final Map<String, byte[]> digests = new LinkedHashMap<>();
+    private final Map<String, String> signatureAttributes = new LinkedHashMap<>();
+
+    public ApkV1SchemeSigner(KeystoreInfo keystore) throws IOException, GeneralSecurityException
+    {
+        this(keystore.getPrivateKey(), keystore.getCertificate());
+    }
+
+    /**
+     * Keys of algorithms which cannot sign JAR signature (e.g. DSA, which is accepted by v2/v3 only) are rejected
+     * here, before any entry is written.
+     */
+    public ApkV1SchemeSigner(PrivateKey privateKey, X509Certificate certificate) throws GeneralSecurityException
+    {
+        getSignatureAlgorithm(privateKey);
+
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+    }
+
+    /**
+     * Files of existing JAR signature, these are never part of a new signature.
+     */
+    public static boolean isSignatureFile(String name)
+    {
+        return SIGNATURE_FILE_PATTERN.matcher(name).matches();
+    }
+
+    public static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds digest of uncompressed entry content to be listed in MANIFEST.MF.
+     */
+    public void addEntry(String name, byte[] digest)
+    {
+        if (!isSignatureFile(name))
+            digests.put(name, digest);
+    }
+
+    /**
+     * Adds main attribute of signature file, e.g. X-Android-APK-Signed.
+     */
+    public void setSignatureAttribute(String name, String value)
+    {
+        signatureAttributes.put(name, value);
+    }
+
+    /**
+     * Creates MANIFEST.MF, signature file and signature block, in order they should be stored in the APK.
+     */
+    public Map<String, byte[]> sign() throws GeneralSecurityException
+    {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", CREATED_BY);
+        writeLine(manifest, "");
+
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+
+        for (Map.Entry<String, byte[]> kvp : digests.entrySet())
+        {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+
+            writeAttribute(section, "Name", kvp.getKey());
+            writeAttribute(section, DIGEST_ATTRIBUTE, Base64.getEncoder().encodeToString(kvp.getValue()));
+            writeLine(section, "");
+
+            byte[] sectionBytes = section.toByteArray();
+            manifest.write(sectionBytes, 0, sectionBytes.length);
+
+            sections.put(kvp.getKey(), sectionBytes);
+        }
+
+        byte[] manifestBytes = manifest.toByteArray();
+
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", CREATED_BY);
+        writeAttribute(signatureFile, DIGEST_ATTRIBUTE + "-Manifest", digest(manifestBytes));
+
+        for (Map.Entry<String, String> kvp : signatureAttributes.entrySet())
+            writeAttribute(signatureFile, kvp.getKey(), kvp.getValue());
+
+        writeLine(signatureFile, "");
+
+        for (Map.Entry<String, byte[]> kvp : sections.entrySet())
+        {
+            writeAttribute(signatureFile, "Name", kvp.getKey());
+            writeAttribute(signatureFile, DIGEST_ATTRIBUTE, digest(kvp.getValue()));
+            writeLine(signatureFile, "");
+        }
+
+        byte[] signatureFileBytes = signatureFile.toByteArray();
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        result.put(MANIFEST_NAME, manifestBytes);
+        result.put("META-INF/" + SIGNATURE_NAME + ".SF", signatureFileBytes);
+        result.put("META-INF/" + SIGNATURE_NAME + "." + getBlockExtension(), createSignatureBlock(signatureFileBytes));
+
+        return result;
+    }
+
+    /**
+     * PKCS#7 SignedData with detached content and no authenticated attributes, signature is computed over signature file directly.
+     */
+    private byte[] createSignatureBlock(byte[] signatureFileBytes) throws GeneralSecurityException
+    {
+        Signature signature = Signature.getInstance(getSignatureAlgorithm(privateKey));
+        signature.initSign(privateKey);
+        signature.update(signatureFileBytes);
+
+        byte[] digestAlgorithm = DerEncoder.algorithm(DIGEST_ALGORITHM_OID, DerEncoder.nullValue());
+
+        byte[] signerInfo = DerEncoder.sequence(
+                DerEncoder.integer(1),
+                DerEncoder.sequence(certificate.getIssuerX500Principal().getEncoded(), DerEncoder.integer(certificate.getSerialNumber())),
+                digestAlgorithm,
+                getEncryptionAlgorithm(),
+                DerEncoder.octetString(signature.sign()));
+
+        byte[] signedData = DerEncoder.sequence(
+                DerEncoder.integer(1),
+                DerEncoder.set(digestAlgorithm),
+                DerEncoder.sequence(DerEncoder.oid("1.2.840.113549.1.7.1")),
+                DerEncoder.tagged(0, certificate.getEncoded()),
+                DerEncoder.set(signerInfo));
+
+        return DerEncoder.sequence(
+                DerEncoder.oid("1.2.840.113549.1.7.2"),
+                DerEncoder.tagged(0, signedData));
+    }
+
+    private static String getSignatureAlgorithm(PrivateKey privateKey) throws GeneralSecurityException
+    {
+        switch (privateKey.getAlgorithm())
+        {
+            case "RSA":
+                return "SHA1withRSA";
+
+            case "EC":
+                return "SHA1withECDSA";
+
+            default:
+                throw new GeneralSecurityException("Unsupported signing key algorithm for JAR signature (v1): " + privateKey.getAlgorithm() + ", disable v1 signing to sign with v2/v3 only");
+        }
+    }
+
+    private byte[] getEncryptionAlgorithm()
+    {
+        if ("EC".equals(privateKey.getAlgorithm()))
+            return DerEncoder.algorithm("1.2.840.10045.4.1", null);
+
+        return DerEncoder.algorithm("1.2.840.113549.1.1.1", DerEncoder.nullValue());
+    }
+
+    private String getBlockExtension()
+    {
+        return "EC".equals(privateKey.getAlgorithm()) ? "EC" : "RSA";
+    }
+
+    private static String digest(byte[] data)
+    {
+        return Base64.getEncoder().encodeToString(createDigest().digest(data));
+    }
+
+    /**
+     * Writes manifest attribute, lines longer than 72 bytes are continued on next line starting with space.
+     */
+    private static void writeAttribute(ByteArrayOutputStream os, String name, String value)
+    {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+
+        int offset = 0;
+        int length = Math.min(line.length, MANIFEST_LINE_LENGTH);
+
+        while (true)
+        {
+            os.write(line, offset, length);
+            os.write('\r');
+            os.write('\n');
+
+            offset += length;
+
+            if (offset >= line.length)
+                break;
+
+            os.write(' ');
+            length = Math.min(line.length - offset, MANIFEST_LINE_LENGTH - 1);
+        }
+    }
+
+    private static void writeLine(ByteArrayOutputStream os, String line)
+    {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+        os.write(bytes, 0, bytes.length);
+        os.write('\r');
+        os.write('\n');
+    }
+}
@@ -0,0 +1,1000 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.apk.ApkArchive;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes ZIP archive entry by entry. Unlike {@link java.util.zip.ZipOutputStream} it is able
+ * to copy already compressed entries of another archive without inflating them.
+ */
+public class ApkZipWriter implements Closeable
+{
+    private static final int ZIP_ENTRY_VERSION = 20;
+    private static final int ZIP64_ENTRY_VERSION = 45;
+    private static final int ZIP_ENTRY_USES_DATA_DESCR = 0x0008;
+    private static final int ZIP_ENTRY_UTF8 = 0x0800;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+
+    private static final int FILE_BUFFER = 32 * 1024;
+    private static final int SCATTER_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private static class Record
+    {
+        final byte[] nameBytes;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final int dosDate;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final byte[] extra;
+        final byte[] comment;
+        final int externalAttributes;
+        final long headerOffset;
+
+        Record(byte[] nameBytes, int flags, int method, int dosTime, int dosDate, long crc, long compressedSize, long size, byte[] extra, byte[] comment, int externalAttributes, long headerOffset)
+        {
+            this.nameBytes = nameBytes;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.dosDate = dosDate;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.extra = extra;
+            this.comment = comment;
+            this.externalAttributes = externalAttributes;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    /**
+     * Entry compressed ahead of writing, so it can be prepared on worker thread. Compressed data are kept in memory,
+     * bigger ones are spilled to temporary file. Stored entries reference their source file directly.
+     */
+    public static class CompressedEntry implements Closeable
+    {
+        private final String name;
+        private final int method;
+        private final long time;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+
+        private final byte[] data;
+        private final File dataFile;
+        private final boolean temporary;
+
+        private byte[] digest;
+
+        CompressedEntry(String name, int method, long time, long crc, long size, long compressedSize, byte[] data, File dataFile, boolean temporary)
+        {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.dataFile = dataFile;
+            this.temporary = temporary;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getMethod()
+        {
+            return method;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        @Override
+        public void close()
+        {
+            if (temporary)
+                dataFile.delete();
+        }
+    }
+
+    private static class ScatterOutputStream extends OutputStream
+    {
+        private final File spillFolder;
+        private final int memoryLimit;
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File spillFile;
+        private OutputStream spill;
+        private long written;
+
+        ScatterOutputStream(File spillFolder, int memoryLimit)
+        {
+            this.spillFolder = spillFolder;
+            this.memoryLimit = memoryLimit;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (spill == null && memory.size() + len > memoryLimit)
+            {
+                spillFile = File.createTempFile("scatter", ".tmp", spillFolder);
+                spill = new BufferedOutputStream(new FileOutputStream(spillFile), FILE_BUFFER);
+
+                memory.writeTo(spill);
+                memory = null;
+            }
+
+            if (spill != null)
+                spill.write(b, off, len);
+            else
+                memory.write(b, off, len);
+
+            written += len;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (spill != null)
+                spill.close();
+        }
+
+        void discard()
+        {
+            IOUtils.closeQuietly(spill);
+
+            if (spillFile != null)
+                spillFile.delete();
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<Record> records = new ArrayList<>();
+
+    private final byte[] buffer;
+    private final byte[] deflateBuffer;
+
+    private ByteBuffer headerBuffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] comment = new byte[0];
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private AlignmentPolicy alignmentPolicy = new AlignmentPolicy();
+    private ApkV1SchemeSigner v1Signer;
+    private boolean closed;
+
+    public ApkZipWriter(File outputFile) throws IOException
+    {
+        this.channel = FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        // pooled after channel is opened, otherwise they would not be released by close()
+        this.buffer = CodecPool.shared().acquireArray(FILE_BUFFER);
+        this.deflateBuffer = CodecPool.shared().acquireArray(FILE_BUFFER);
+    }
+
+    public void setComment(byte[] comment)
+    {
+        this.comment = comment == null ? new byte[0] : comment;
+    }
+
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Aligns data of stored entries by alignment field appended to local extra field, same as zipalign does.
+     * Stored entries are aligned by default {@link AlignmentPolicy}, null keeps data offsets unaligned.
+     */
+    public void setAlignmentPolicy(AlignmentPolicy alignmentPolicy)
+    {
+        this.alignmentPolicy = alignmentPolicy;
+    }
+
+    /**
+     * Collects digest of every written entry and stores JAR signature files when the archive is closed,
+     * so signed APK is produced in a single pass.
+     */
+    public void setV1Signer(ApkV1SchemeSigner v1Signer)
+    {
+        this.v1Signer = v1Signer;
+    }
+
+    public int getEntryCount()
+    {
+        return records.size();
+    }
+
+    /**
+     * Copies entry from source archive as is, compressed data are not touched. When signing, entry is inflated to compute its digest.
+     */
+    public void copyEntry(ApkArchive archive, ApkArchive.Entry entry) throws IOException
+    {
+        copyEntry(archive, entry, v1Signer != null && !entry.isDirectory() ? digest(archive, entry) : null);
+    }
+
+    /**
+     * Copies entry from source archive as is, digest of its uncompressed content is already known.
+     */
+    public void copyEntry(ApkArchive archive, ApkArchive.Entry entry, byte[] digest) throws IOException
+    {
+        int flags = entry.getFlags() & ~ZIP_ENTRY_USES_DATA_DESCR;
+
+        Record record = new Record(entry.getNameBytes(),
+                flags,
+                entry.getMethod(),
+                entry.getDosTime(),
+                entry.getDosDate(),
+                entry.getCrc(),
+                entry.getCompressedSize(),
+                entry.getSize(),
+                entry.getExtra(),
+                entry.getComment(),
+                entry.getExternalAttributes(),
+                channel.position());
+
+        writeLocalHeader(record);
+        archive.transferRawData(entry, channel);
+
+        records.add(record);
+
+        addDigest(entry.getName(), digest);
+    }
+
+    public void writeEntry(String name, File file, int method) throws IOException
+    {
+        writeEntry(name, file, method, compressionLevel);
+    }
+
+    /**
+     * Writes file deflated with given level or stored, returns compressed size of written data.
+     */
+    public long writeEntry(String name, File file, int method, int compressionLevel) throws IOException
+    {
+        long time = file.lastModified();
+
+        if (method == ZipEntry.STORED)
+        {
+            try (InputStream is = new FileInputStream(file))
+            {
+                writeStored(name, is, file.length(), time);
+            }
+
+            return file.length();
+        }
+
+        try (InputStream is = new FileInputStream(file))
+        {
+            return writeDeflated(name, is, file.length(), time, compressionLevel);
+        }
+    }
+
+    /**
+     * Writes entry prepared by {@link #compress(String, File, int, int, File, boolean)}. Headers are the same
+     * as {@link #writeEntry(String, File, int, int)} writes, so sequential and parallel zipping produce identical output.
+     */
+    public void writeEntry(CompressedEntry entry) throws IOException
+    {
+        if (v1Signer != null && entry.digest == null)
+            throw new IllegalStateException("Entry was compressed without digest: " + entry.name);
+
+        int[] dos = toDosTime(entry.time);
+        boolean dataDescriptor = entry.method == ZipEntry.DEFLATED && usesDataDescriptor(entry.size);
+        int flags = ZIP_ENTRY_UTF8 | (dataDescriptor ? ZIP_ENTRY_USES_DATA_DESCR : 0);
+
+        Record record = new Record(entry.name.getBytes(StandardCharsets.UTF_8),
+                flags,
+                entry.method,
+                dos[0],
+                dos[1],
+                entry.crc,
+                entry.compressedSize,
+                entry.size,
+                new byte[0],
+                new byte[0],
+                0,
+                channel.position());
+
+        writeLocalHeader(record);
+
+        if (entry.data != null)
+        {
+            writeFully(ByteBuffer.wrap(entry.data));
+        }
+        else
+        {
+            try (FileChannel source = FileChannel.open(entry.dataFile.toPath(), StandardOpenOption.READ))
+            {
+                long position = 0;
+
+                while (position < entry.compressedSize)
+                {
+                    long transferred = source.transferTo(position, entry.compressedSize - position, channel);
+
+                    if (transferred <= 0)
+                        throw new EOFException("Unexpected end of file: " + entry.dataFile);
+
+                    position += transferred;
+                }
+            }
+        }
+
+        if (dataDescriptor)
+            writeDataDescriptor(entry.crc, entry.compressedSize, entry.size);
+
+        records.add(record);
+
+        addDigest(entry.name, entry.digest);
+    }
+
+    /**
+     * Compresses file into scatter buffer, safe to be called concurrently. Returned entry must be closed after it is written.
+     * When digest is requested, v1 signature digest of the content is computed in the same pass.
+     */
+    public static CompressedEntry compress(String name, File file, int method, int compressionLevel, File spillFolder, boolean digest) throws IOException
+    {
+        byte[] buffer = CodecPool.shared().acquireArray(FILE_BUFFER);
+        CRC32 crc = new CRC32();
+        MessageDigest messageDigest = digest ? ApkV1SchemeSigner.createDigest() : null;
+
+        CompressedEntry result;
+
+        try
+        {
+            result = compress(name, file, method, compressionLevel, spillFolder, buffer, crc, messageDigest);
+        }
+        finally
+        {
+            CodecPool.shared().release(buffer);
+        }
+
+        if (messageDigest != null)
+            result.digest = messageDigest.digest();
+
+        return result;
+    }
+
+    private static CompressedEntry compress(String name, File file, int method, int compressionLevel, File spillFolder, byte[] buffer, CRC32 crc, MessageDigest messageDigest) throws IOException
+    {
+        if (method == ZipEntry.STORED && messageDigest == null)
+            return new CompressedEntry(name, method, file.lastModified(), ChunkedCrc32.shared().compute(file), file.length(), file.length(), null, file, false);
+
+        if (method == ZipEntry.STORED)
+        {
+            try (InputStream is = new FileInputStream(file))
+            {
+                int read;
+                while ((read = is.read(buffer)) != -1)
+                {
+                    crc.update(buffer, 0, read);
+
+                    if (messageDigest != null)
+                        messageDigest.update(buffer, 0, read);
+                }
+            }
+
+            return new CompressedEntry(name, method, file.lastModified(), crc.getValue(), file.length(), file.length(), null, file, false);
+        }
+
+        return deflate(name, file, compressionLevel, spillFolder, buffer, crc, messageDigest);
+    }
+
+    private static CompressedEntry deflate(String name, File file, int compressionLevel, File spillFolder, byte[] buffer, CRC32 crc, MessageDigest messageDigest) throws IOException
+    {
+        ScatterOutputStream scatter = new ScatterOutputStream(spillFolder, SCATTER_MEMORY_LIMIT);
+        Deflater deflater = CodecPool.shared().acquireDeflater(compressionLevel);
+
+        long size = 0;
+
+        try (InputStream is = new FileInputStream(file);
+             DeflaterOutputStream dos = new DeflaterOutputStream(scatter, deflater, FILE_BUFFER))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, read);
+
+                if (messageDigest != null)
+                    messageDigest.update(buffer, 0, read);
+
+                dos.write(buffer, 0, read);
+                size += read;
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            scatter.discard();
+            throw e;
+        }
+        finally
+        {
+            CodecPool.shared().release(deflater, compressionLevel);
+        }
+
+        if (scatter.spillFile != null)
+            return new CompressedEntry(name, ZipEntry.DEFLATED, file.lastModified(), crc.getValue(), size, scatter.written, null, scatter.spillFile, true);
+
+        return new CompressedEntry(name, ZipEntry.DEFLATED, file.lastModified(), crc.getValue(), size, scatter.written, scatter.memory.toByteArray(), null, false);
+    }
+
+    public void writeEntry(String name, byte[] data, int method) throws IOException
+    {
+        long time = System.currentTimeMillis();
+
+        if (method == ZipEntry.STORED)
+        {
+            writeStored(name, new ByteArrayInputStream(data), data.length, time);
+        }
+        else
+        {
+            writeDeflated(name, new ByteArrayInputStream(data), data.length, time, compressionLevel);
+        }
+    }
+
+    /**
+     * Stored entry is read only once, size is known upfront so local header is written with placeholder CRC
+     * which is patched in place after data are streamed. No data descriptor is used.
+     */
+    private void writeStored(String name, InputStream is, long size, long time) throws IOException
+    {
+        int[] dos = toDosTime(time);
+        long headerOffset = channel.position();
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+
+        writeLocalHeader(new Record(nameBytes, ZIP_ENTRY_UTF8, ZipEntry.STORED, dos[0], dos[1], 0, size, size, new byte[0], new byte[0], 0, headerOffset));
+
+        CRC32 crc = new CRC32();
+        MessageDigest digest = v1Signer != null ? ApkV1SchemeSigner.createDigest() : null;
+
+        long written = 0;
+
+        int read;
+        while ((read = is.read(buffer)) != -1)
+        {
+            crc.update(buffer, 0, read);
+
+            if (digest != null)
+                digest.update(buffer, 0, read);
+
+            written += read;
+
+            if (written > size)
+                break;
+
+            writeFully(ByteBuffer.wrap(buffer, 0, read));
+        }
+
+        if (written != size)
+            throw new IOException(String.format("Size of entry %s changed while it was written, expected %d bytes", name, size));
+
+        patchLocalHeader(headerOffset, crc.getValue(), size, size);
+
+        records.add(new Record(nameBytes, ZIP_ENTRY_UTF8, ZipEntry.STORED, dos[0], dos[1], crc.getValue(), size, size, new byte[0], new byte[0], 0, headerOffset));
+
+        addDigest(name, digest != null ? digest.digest() : null);
+    }
+
+    /**
+     * Size is known upfront, so unless compressed data may need ZIP64 sizes, local header is written with placeholder
+     * CRC and compressed size which are patched in place after data are deflated. Otherwise data descriptor is used.
+     */
+    private long writeDeflated(String name, InputStream is, long expectedSize, long time, int compressionLevel) throws IOException
+    {
+        int[] dos = toDosTime(time);
+        long headerOffset = channel.position();
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean dataDescriptor = usesDataDescriptor(expectedSize);
+        int flags = ZIP_ENTRY_UTF8 | (dataDescriptor ? ZIP_ENTRY_USES_DATA_DESCR : 0);
+
+        writeLocalHeader(new Record(nameBytes, flags, ZipEntry.DEFLATED, dos[0], dos[1], 0, 0, expectedSize, new byte[0], new byte[0], 0, headerOffset));
+
+        CRC32 crc = new CRC32();
+        MessageDigest digest = v1Signer != null ? ApkV1SchemeSigner.createDigest() : null;
+        Deflater deflater = CodecPool.shared().acquireDeflater(compressionLevel);
+
+        long size = 0;
+        long compressedSize = 0;
+
+        try
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, read);
+                size += read;
+
+                if (size > expectedSize)
+                    break;
+
+                if (digest != null)
+                    digest.update(buffer, 0, read);
+
+                deflater.setInput(buffer, 0, read);
+
+                while (!deflater.needsInput())
+                    compressedSize += deflate(deflater);
+            }
+
+            if (size != expectedSize)
+                throw new IOException(String.format("Size of entry %s changed while it was written, expected %d bytes", name, expectedSize));
+
+            deflater.finish();
+
+            while (!deflater.finished())
+                compressedSize += deflate(deflater);
+        }
+        finally
+        {
+            CodecPool.shared().release(deflater, compressionLevel);
+        }
+
+        if (dataDescriptor)
+            writeDataDescriptor(crc.getValue(), compressedSize, size);
+        else
+            patchLocalHeader(headerOffset, crc.getValue(), compressedSize, size);
+
+        records.add(new Record(nameBytes, flags, ZipEntry.DEFLATED, dos[0], dos[1], crc.getValue(), compressedSize, size, new byte[0], new byte[0], 0, headerOffset));
+
+        addDigest(name, digest != null ? digest.digest() : null);
+
+        return compressedSize;
+    }
+
+    /**
+     * Data descriptor has 64-bit sizes when they do not fit, same as ZipOutputStream does.
+     */
+    private void writeDataDescriptor(long crc, long compressedSize, long size) throws IOException
+    {
+        ByteBuffer header = header(24);
+        header.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        header.putInt((int) crc);
+
+        if (isZip64(compressedSize, size))
+        {
+            header.putLong(compressedSize);
+            header.putLong(size);
+        }
+        else
+        {
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+        }
+
+        header.flip();
+        writeFully(header);
+    }
+
+    private void addDigest(String name, byte[] digest)
+    {
+        if (v1Signer != null && digest != null)
+            v1Signer.addEntry(name, digest);
+    }
+
+    private byte[] digest(ApkArchive archive, ApkArchive.Entry entry) throws IOException
+    {
+        MessageDigest digest = ApkV1SchemeSigner.createDigest();
+
+        try (InputStream is = archive.getInputStream(entry))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+
+        return digest.digest();
+    }
+
+    private int deflate(Deflater deflater) throws IOException
+    {
+        int length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+
+        if (length > 0)
+            writeFully(ByteBuffer.wrap(deflateBuffer, 0, length));
+
+        return length;
+    }
+
+    /**
+     * Patches CRC and sizes of local header written with placeholders, ZIP64 sizes are already final in extra field.
+     */
+    private void patchLocalHeader(long headerOffset, long crc, long compressedSize, long size) throws IOException
+    {
+        boolean zip64 = isZip64(compressedSize, size);
+
+        ByteBuffer header = header(12);
+        header.putInt((int) crc);
+
+        if (!zip64)
+        {
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+        }
+
+        header.flip();
+
+        long position = headerOffset + LOCAL_HEADER_CRC_OFFSET;
+
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+    }
+
+    private void writeLocalHeader(Record record) throws IOException
+    {
+        byte[] extra = record.extra;
+        int alignment = 0;
+        int padding = 0;
+
+        final boolean dataDescriptor = (record.flags & ZIP_ENTRY_USES_DATA_DESCR) != 0;
+        final boolean zip64 = !dataDescriptor && isZip64(record.compressedSize, record.size);
+
+        extra = withZip64LocalField(extra, dataDescriptor ? 0 : record.compressedSize, dataDescriptor ? 0 : record.size);
+
+        if (record.method == ZipEntry.STORED && alignmentPolicy != null)
+        {
+            extra = AlignmentPolicy.stripAlignmentField(extra);
+            alignment = alignmentPolicy.getAlignment(new String(record.nameBytes, StandardCharsets.UTF_8));
+
+            long dataOffset = record.headerOffset + ApkArchive.LOCAL_HEADER_LEN + record.nameBytes.length + extra.length;
+            padding = AlignmentPolicy.getPaddingFieldLength(dataOffset, alignment);
+        }
+
+        ByteBuffer header = header(ApkArchive.LOCAL_HEADER_LEN + record.nameBytes.length + extra.length + padding);
+        header.putInt(ApkArchive.LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) (zip64 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION));
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putShort((short) record.dosTime);
+        header.putShort((short) record.dosDate);
+
+        if (dataDescriptor)
+        {
+            header.putInt(0);
+            header.putInt(0);
+            header.putInt(0);
+        }
+        else if (zip64)
+        {
+            header.putInt((int) record.crc);
+            header.putInt((int) ApkArchive.ZIP64_MAGIC);
+            header.putInt((int) ApkArchive.ZIP64_MAGIC);
+        }
+        else
+        {
+            header.putInt((int) record.crc);
+            header.putInt((int) record.compressedSize);
+            header.putInt((int) record.size);
+        }
+
+        header.putShort((short) record.nameBytes.length);
+        header.putShort((short) (extra.length + padding));
+        header.put(record.nameBytes);
+        header.put(extra);
+
+        AlignmentPolicy.putPaddingField(header, padding, alignment);
+
+        header.flip();
+
+        writeFully(header);
+    }
+
+    /**
+     * Stores JAR signature files at the end of entries data, while in central directory they are listed first.
+     */
+    private void writeSignature() throws IOException
+    {
+        Map<String, byte[]> signatureFiles;
+
+        try
+        {
+            signatureFiles = v1Signer.sign();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Unable to sign archive.", e);
+        }
+
+        v1Signer = null;
+
+        int first = records.size();
+
+        for (Map.Entry<String, byte[]> kvp : signatureFiles.entrySet())
+            writeEntry(kvp.getKey(), kvp.getValue(), ZipEntry.DEFLATED);
+
+        List<Record> signatureRecords = new ArrayList<>(records.subList(first, records.size()));
+
+        records.subList(first, records.size()).clear();
+        records.addAll(0, signatureRecords);
+    }
+
+    private void writeCentralDirectory() throws IOException
+    {
+        long centralDirOffset = channel.position();
+
+        for (Record record : records)
+        {
+            byte[] extra = withZip64CentralField(record.extra, record.compressedSize, record.size, record.headerOffset);
+            boolean zip64 = isZip64(record.compressedSize, record.size) || record.headerOffset >= ApkArchive.ZIP64_MAGIC;
+            int version = zip64 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION;
+
+            ByteBuffer header = header(ApkArchive.CENTRAL_HEADER_LEN + record.nameBytes.length + extra.length + record.comment.length);
+            header.putInt(ApkArchive.CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) version); // version made by
+            header.putShort((short) version); // version needed to extract
+            header.putShort((short) record.flags);
+            header.putShort((short) record.method);
+            header.putShort((short) record.dosTime);
+            header.putShort((short) record.dosDate);
+            header.putInt((int) record.crc);
+            header.putInt(toZip32(record.compressedSize));
+            header.putInt(toZip32(record.size));
+            header.putShort((short) record.nameBytes.length);
+            header.putShort((short) extra.length);
+            header.putShort((short) record.comment.length);
+            header.putShort((short) 0); // starting disk number
+            header.putShort((short) 0); // internal file attributes
+            header.putInt(record.externalAttributes);
+            header.putInt(toZip32(record.headerOffset));
+            header.put(record.nameBytes);
+            header.put(extra);
+            header.put(record.comment);
+            header.flip();
+
+            writeFully(header);
+        }
+
+        long centralDirSize = channel.position() - centralDirOffset;
+
+        ByteBuffer header = header(getEndOfCentralDirectoryLength(records.size(), centralDirSize, centralDirOffset, comment));
+        putEndOfCentralDirectory(header, records.size(), centralDirSize, centralDirOffset, comment);
+        header.flip();
+
+        writeFully(header);
+    }
+
+    private ByteBuffer header(int length)
+    {
+        if (headerBuffer.capacity() < length)
+            headerBuffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+        headerBuffer.clear();
+
+        return headerBuffer;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+
+        try
+        {
+            if (v1Signer != null)
+                writeSignature();
+
+            writeCentralDirectory();
+        }
+        finally
+        {
+            CodecPool.shared().release(buffer);
+            CodecPool.shared().release(deflateBuffer);
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Deflated entries use data descriptor only when their compressed size could need ZIP64 (zlib's deflateBound).
+     */
+    private static boolean usesDataDescriptor(long size)
+    {
+        long bound = size + ((size + 7) >> 3) + ((size + 63) >> 6) + 11;
+        return isZip64(bound, size);
+    }
+
+    static boolean isZip64(long compressedSize, long size)
+    {
+        return compressedSize >= ApkArchive.ZIP64_MAGIC || size >= ApkArchive.ZIP64_MAGIC;
+    }
+
+    /**
+     * Value of 32-bit header field, which is stored in ZIP64 extra field when it does not fit.
+     */
+    static int toZip32(long value)
+    {
+        return (int) Math.min(value, ApkArchive.ZIP64_MAGIC);
+    }
+
+    /**
+     * Replaces ZIP64 extra field of local header. When one of sizes does not fit, both of them are stored in it.
+     * Returns the same array when there is no field to add nor remove.
+     */
+    static byte[] withZip64LocalField(byte[] extra, long compressedSize, long size)
+    {
+        extra = ApkArchive.removeExtraField(extra, ApkArchive.ZIP64_EXTRA_FIELD_ID);
+
+        if (!isZip64(compressedSize, size))
+            return extra;
+
+        ByteBuffer result = ByteBuffer.allocate(extra.length + 20).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(extra);
+        result.putShort((short) ApkArchive.ZIP64_EXTRA_FIELD_ID);
+        result.putShort((short) 16);
+        result.putLong(size);
+        result.putLong(compressedSize);
+
+        return result.array();
+    }
+
+    /**
+     * Replaces ZIP64 extra field of central header, it contains only values which do not fit.
+     * Returns the same array when there is no field to add nor remove.
+     */
+    static byte[] withZip64CentralField(byte[] extra, long compressedSize, long size, long headerOffset)
+    {
+        extra = ApkArchive.removeExtraField(extra, ApkArchive.ZIP64_EXTRA_FIELD_ID);
+
+        int length = (size >= ApkArchive.ZIP64_MAGIC ? 8 : 0)
+                + (compressedSize >= ApkArchive.ZIP64_MAGIC ? 8 : 0)
+                + (headerOffset >= ApkArchive.ZIP64_MAGIC ? 8 : 0);
+
+        if (length == 0)
+            return extra;
+
+        ByteBuffer result = ByteBuffer.allocate(extra.length + 4 + length).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(extra);
+        result.putShort((short) ApkArchive.ZIP64_EXTRA_FIELD_ID);
+        result.putShort((short) length);
+
+        if (size >= ApkArchive.ZIP64_MAGIC)
+            result.putLong(size);
+
+        if (compressedSize >= ApkArchive.ZIP64_MAGIC)
+            result.putLong(compressedSize);
+
+        if (headerOffset >= ApkArchive.ZIP64_MAGIC)
+            result.putLong(headerOffset);
+
+        return result.array();
+    }
+
+    private static boolean isZip64End(long entryCount, long centralDirSize, long centralDirOffset)
+    {
+        return entryCount >= ApkArchive.ZIP64_MAGIC_COUNT || centralDirSize >= ApkArchive.ZIP64_MAGIC || centralDirOffset >= ApkArchive.ZIP64_MAGIC;
+    }
+
+    static int getEndOfCentralDirectoryLength(long entryCount, long centralDirSize, long centralDirOffset, byte[] comment)
+    {
+        int length = ApkArchive.END_HEADER_LEN + comment.length;
+
+        if (isZip64End(entryCount, centralDirSize, centralDirOffset))
+            length += ApkArchive.ZIP64_END_HEADER_LEN + ApkArchive.ZIP64_LOCATOR_LEN;
+
+        return length;
+    }
+
+    /**
+     * Puts end of central directory record, which is written right after central directory. It is preceded by ZIP64 record
+     * and its locator when any of its values does not fit.
+     */
+    static void putEndOfCentralDirectory(ByteBuffer header, long entryCount, long centralDirSize, long centralDirOffset, byte[] comment)
+    {
+        if (isZip64End(entryCount, centralDirSize, centralDirOffset))
+        {
+            long zip64EndOffset = centralDirOffset + centralDirSize;
+
+            header.putInt(ApkArchive.ZIP64_END_HEADER_SIGNATURE);
+            header.putLong(ApkArchive.ZIP64_END_HEADER_LEN - 12); // size of remaining record
+            header.putShort((short) ZIP64_ENTRY_VERSION); // version made by
+            header.putShort((short) ZIP64_ENTRY_VERSION); // version needed to extract
+            header.putInt(0); // number of this disk
+            header.putInt(0); // central directory start disk
+            header.putLong(entryCount); // number of directory entries on disk
+            header.putLong(entryCount); // total number of directory entries
+            header.putLong(centralDirSize);
+            header.putLong(centralDirOffset);
+
+            header.putInt(ApkArchive.ZIP64_LOCATOR_SIGNATURE);
+            header.putInt(0); // disk with ZIP64 end of central directory
+            header.putLong(zip64EndOffset);
+            header.putInt(1); // total number of disks
+        }
+
+        header.putInt(ApkArchive.END_HEADER_SIGNATURE);
+        header.putShort((short) 0); // number of this disk
+        header.putShort((short) 0); // central directory start disk
+        header.putShort((short) Math.min(entryCount, ApkArchive.ZIP64_MAGIC_COUNT)); // number of directory entries on disk
+        header.putShort((short) Math.min(entryCount, ApkArchive.ZIP64_MAGIC_COUNT)); // total number of directory entries
+        header.putInt(toZip32(centralDirSize));
+        header.putInt(toZip32(centralDirOffset));
+        header.putShort((short) comment.length);
+        header.put(comment);
+    }
+
+    static int[] toDosTime(long time)
+    {
+        GregorianCalendar cal = new GregorianCalendar();
+        cal.setTime(new Date(time));
+
+        if (cal.get(Calendar.YEAR) < 1980)
+            return new int[] {0, 0x21};
+
+        int date = cal.get(Calendar.DATE);
+        date = (cal.get(Calendar.MONTH) + 1 << 5) | date;
+        date = ((cal.get(Calendar.YEAR) - 1980) << 9) | date;
+
+        int dosTime = cal.get(Calendar.SECOND) >> 1;
+        dosTime = (cal.get(Calendar.MINUTE) << 5) | dosTime;
+        dosTime = (cal.get(Calendar.HOUR_OF_DAY) << 11) | dosTime;
+
+        return new int[] {dosTime, date};
+    }
+}
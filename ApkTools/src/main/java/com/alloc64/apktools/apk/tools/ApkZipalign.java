@@ -6,161 +6,142 @@
 
 package com.alloc64.apktools.apk.tools;
 
+import com.alloc64.apktools.apk.ApkArchive;
+
 import org.apache.commons.io.IOUtils;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.GregorianCalendar;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipException;
 
 public class ApkZipalign
 {
-    private static final String UTF8 = "UTF-8";
-
     private static final int ZIP_ENTRY_HEADER_LEN = 30;
     private static final int ZIP_ENTRY_VERSION = 20;
+    private static final int ZIP64_ENTRY_VERSION = 45;
     private static final int ZIP_ENTRY_USES_DATA_DESCR = 0x0008;
-    private static final int ZIP_ENTRY_DATA_DESCRIPTOR_LEN = 16;
-    private static final int DEFAULT_ALIGNMENT = 4;
 
-    private static final int FILE_BUFFER = 32 * 1024;
+    private static final int HEADER_BUFFER = 64 * 1024;
+    private static final int SMALL_ENTRY_SIZE = 16 * 1024;
 
     private static class XEntry
     {
-        final ZipEntry entry;
+        final ApkArchive.Entry entry;
+        final byte[] nameBytes;
+        final int dosTime;
+        final int dosDate;
         final long headerOffset;
         final int flags;
+        final byte[] localExtra;
+        final int alignment;
         final int padding;
 
         /**
-         * Creates new instance.
+         * Creates new instance, name bytes and DOS timestamp are resolved once for both headers.
          *
          * @param entry        the entry.
          * @param headerOffset the offset of the header.
          * @param flags        the flags.
-         * @param padding      the padding of the "extra" field.
+         * @param localExtra   the "extra" field of local header, alignment field is appended to it.
+         * @param alignment    the alignment of entry data.
+         * @param padding      the length of alignment field appended to the "extra" field.
          */
-        XEntry(ZipEntry entry, long headerOffset, int flags, int padding)
+        XEntry(ApkArchive.Entry entry, long headerOffset, int flags, byte[] localExtra, int alignment, int padding)
         {
             this.entry = entry;
+            this.nameBytes = entry.getNameBytes();
             this.headerOffset = headerOffset;
             this.flags = flags;
+            this.localExtra = localExtra;
+            this.alignment = alignment;
             this.padding = padding;
-        }
-    }
-
-    private static class FilterOutputStreamEx extends FilterOutputStream
-    {
-        private long totalWritten = 0;
 
-        FilterOutputStreamEx(OutputStream out)
-        {
-            super(out);
-        }
-
-        @Override
-        public void write(byte[] b) throws IOException
-        {
-            out.write(b);
-            totalWritten += b.length;
-        }
+            if (isValidDosTime(entry.getDosTime(), entry.getDosDate()))
+            {
+                this.dosTime = entry.getDosTime();
+                this.dosDate = entry.getDosDate();
+            }
+            else
+            {
+                int[] dos = ApkZipWriter.toDosTime(entry.getTime());
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException
-        {
-            out.write(b, off, len);
-            totalWritten += len;
+                this.dosTime = dos[0];
+                this.dosDate = dos[1];
+            }
         }
 
-        @Override
-        public void write(int b) throws IOException
+        int getLocalHeaderLength()
         {
-            out.write(b);
-            totalWritten += 1;
+            return ZIP_ENTRY_HEADER_LEN + nameBytes.length + localExtra.length + padding;
         }
 
         /**
-         * Writes a 32-bit int to the output stream in little-endian byte order.
-         *
-         * @param v the data to write.
-         * @throws IOException
+         * Raw DOS timestamp is written as is, only out of range fields need to be normalized through calendar.
          */
-        void writeInt(long v) throws IOException
+        private static boolean isValidDosTime(int dosTime, int dosDate)
         {
-            write((int) ((v >>> 0) & 0xff));
-            write((int) ((v >>> 8) & 0xff));
-            write((int) ((v >>> 16) & 0xff));
-            write((int) ((v >>> 24) & 0xff));
-        }// writeInt()
+            int month = (dosDate >> 5) & 0x0f;
+            int day = dosDate & 0x1f;
 
-        /**
-         * Writes a 16-bit short to the output stream in little-endian byte
-         * order.
-         *
-         * @param v the data to write.
-         * @throws IOException
-         */
-        void writeShort(int v) throws IOException
-        {
-            write((v >>> 0) & 0xff);
-            write((v >>> 8) & 0xff);
+            return month >= 1 && month <= 12 && day >= 1
+                    && ((dosTime >> 11) & 0x1f) < 24
+                    && ((dosTime >> 5) & 0x3f) < 60
+                    && (dosTime & 0x1f) < 30;
         }
     }
 
     static class ZipAligner
     {
         private final File inputFile;
-        private final int alignment;
+        private final AlignmentPolicy alignmentPolicy;
         private final File outputFile;
         private final List<XEntry> entries = new ArrayList<>();
 
-        private ZipFile zipFile;
-        private RandomAccessFile randomAccessFileInput;
-        private FilterOutputStreamEx outputStream;
-        private long inputFileOffset = 0;
-        private int totalPadding = 0;
+        private ApkArchive archive;
+        private FileChannel channel;
+        private ByteBuffer buffer;
 
         ZipAligner(File input, File output)
         {
-            this(input, DEFAULT_ALIGNMENT, output);
+            this(input, new AlignmentPolicy(), output);
         }
 
-        ZipAligner(File input, int alignment, File output)
+        ZipAligner(File input, AlignmentPolicy alignmentPolicy, File output)
         {
             this.inputFile = input;
-            this.alignment = alignment;
+            this.alignmentPolicy = alignmentPolicy;
             this.outputFile = output;
         }
 
-        void run() throws Exception
+        void run() throws IOException
         {
+            this.buffer = CodecPool.shared().acquireBuffer(HEADER_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+
             try
             {
-                this.zipFile = new ZipFile(inputFile);
-                this.randomAccessFileInput = new RandomAccessFile(inputFile, "r");
-                this.outputStream = new FilterOutputStreamEx(new BufferedOutputStream(new FileOutputStream(outputFile), FILE_BUFFER));
+                this.archive = new ApkArchive(inputFile);
+                this.channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
 
                 copyAllEntries();
                 buildCentralDirectory();
             }
             finally
             {
-                IOUtils.closeQuietly(zipFile);
-                IOUtils.closeQuietly(randomAccessFileInput);
-                IOUtils.closeQuietly(outputStream);
+                IOUtils.closeQuietly(archive);
+                IOUtils.closeQuietly(channel);
+
+                CodecPool.shared().release(buffer);
             }
         }
 
@@ -174,153 +155,209 @@ public class ApkZipalign
          */
         private void copyAllEntries() throws IOException
         {
-            final int entryCount = zipFile.size();
+            final int entryCount = archive.size();
 
             if (entryCount == 0)
                 return;
 
-            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while (entries.hasMoreElements())
+            for (ApkArchive.Entry entry : archive.getEntries())
             {
-                final ZipEntry entry = entries.nextElement();
-
-                int flags = entry.getMethod() == ZipEntry.STORED ? 0 : 1 << 3;
-                flags |= 1 << 11;
-
-                final long outputEntryHeaderOffset = outputStream.totalWritten;
+                final XEntry xentry = createEntry(entry, channel.position() + buffer.position());
+                this.entries.add(xentry);
 
-                final int inputEntryHeaderSize = ZIP_ENTRY_HEADER_LEN
-                        + (entry.getExtra() != null ? entry.getExtra().length
-                        : 0)
-                        + entry.getName().getBytes(UTF8).length;
-                final long inputEntryDataOffset = inputFileOffset
-                        + inputEntryHeaderSize;
+                /*
+                 * Now write the header to output, data of small entries is buffered together with headers.
+                 */
+                final boolean small = entry.getCompressedSize() <= SMALL_ENTRY_SIZE;
+                final int headerLength = xentry.getLocalHeaderLength();
 
-                final int padding;
+                final ByteBuffer header = reserve(small ? headerLength + (int) entry.getCompressedSize() : headerLength);
+                putLocalHeader(header, xentry);
 
-                if (entry.getMethod() != ZipEntry.STORED)
-                {
-                    /*
-                     * The entry is compressed, copy it without padding.
-                     */
-                    padding = 0;
-                }
-                else
+                if (small)
                 {
-                    /*
-                     * Copy the entry, adjusting as required. We assume that the
-                     * file position in the new file will be equal to the file
-                     * position in the original.
-                     */
-                    long newOffset = inputEntryDataOffset + totalPadding;
-
-                    padding = (int) ((alignment - (newOffset % alignment)) % alignment);
-                    totalPadding += padding;
+                    header.put(archive.getRawData(entry));
+                    continue;
                 }
 
-                final XEntry xentry = new XEntry(entry, outputEntryHeaderOffset, flags, padding);
-                this.entries.add(xentry);
+                flush();
 
                 /*
-                 * Modify the original header, add padding to `extra` field and
-                 * copy it to output.
+                 * Transfer raw data from exact data offset resolved by archive, without copying it through heap.
                  */
-                byte[] extra = entry.getExtra();
-                if (extra == null)
-                {
-                    extra = new byte[padding];
-                    Arrays.fill(extra, (byte) 0);
-                }
-                else
+                archive.transferRawData(entry, channel);
+            }
+
+            flush();
+        }
+
+        /**
+         * Aligns input file in place. Entries before the first misaligned one are left untouched, following entries
+         * are shifted within the file and central directory is rewritten after them.
+         * <p>
+         * File is not usable when this fails in the middle, callers needing atomicity should align a copy.
+         * </p>
+         *
+         * @return false when the file is aligned already and was not modified.
+         * @throws IOException
+         */
+        boolean runInPlace() throws IOException
+        {
+            final List<EntryMove> moves = new ArrayList<>();
+            final long centralDirOffset;
+
+            try
+            {
+                this.archive = new ApkArchive(inputFile);
+
+                final List<ApkArchive.Entry> sortedEntries = sortByOffset(archive);
+                final ApkArchive.Entry firstMisaligned = findMisalignedEntry(archive, sortedEntries, alignmentPolicy);
+
+                if (firstMisaligned == null)
+                    return false;
+
+                final Map<ApkArchive.Entry, XEntry> xentries = new IdentityHashMap<>();
+                long position = firstMisaligned.getLocalHeaderOffset();
+                long previousEnd = 0;
+
+                for (ApkArchive.Entry entry : sortedEntries)
                 {
-                    byte[] newExtra = new byte[extra.length + padding];
-                    System.arraycopy(extra, 0, newExtra, 0, extra.length);
-                    Arrays.fill(newExtra, extra.length, newExtra.length,
-                            (byte) 0);
-                    extra = newExtra;
+                    if (entry.getLocalHeaderOffset() < previousEnd)
+                        throw new ZipException("Overlapping entries in archive: " + inputFile);
+
+                    final long dataOffset = archive.getDataOffset(entry);
+                    previousEnd = dataOffset + entry.getCompressedSize();
+
+                    if (entry.getLocalHeaderOffset() < firstMisaligned.getLocalHeaderOffset())
+                    {
+                        /*
+                         * Entries before the first misaligned one keep their local headers.
+                         */
+                        xentries.put(entry, new XEntry(entry, entry.getLocalHeaderOffset(), entry.getFlags(), null, 0, 0));
+                        continue;
+                    }
+
+                    final XEntry xentry = createEntry(entry, position);
+                    xentries.put(entry, xentry);
+
+                    final ByteBuffer header = ByteBuffer.allocate(xentry.getLocalHeaderLength()).order(ByteOrder.LITTLE_ENDIAN);
+                    putLocalHeader(header, xentry);
+
+                    moves.add(new EntryMove(header, dataOffset, position + header.capacity(), entry.getCompressedSize()));
+                    position += header.capacity() + entry.getCompressedSize();
                 }
-                entry.setExtra(extra);
+
+                for (ApkArchive.Entry entry : archive.getEntries())
+                    this.entries.add(xentries.get(entry));
+
+                centralDirOffset = position;
+            }
+            finally
+            {
+                IOUtils.closeQuietly(archive);
+            }
+
+            this.buffer = CodecPool.shared().acquireBuffer(HEADER_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+
+            try
+            {
+                this.channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
 
                 /*
-                 * Now write the header to output.
+                 * Entry moving towards the end of file may overwrite only entries after it, so runs of such entries
+                 * are moved starting from the last one. Entries moving towards the start are moved in file order.
                  */
-                outputStream.writeInt(ZipOutputStream.LOCSIG);
-                outputStream.writeShort(ZIP_ENTRY_VERSION);
-                outputStream.writeShort(flags);
-                outputStream.writeShort(entry.getMethod());
-
-                int modDate;
-                int time;
-                GregorianCalendar cal = new GregorianCalendar();
-                cal.setTime(new Date(entry.getTime()));
-                int year = cal.get(Calendar.YEAR);
-                if (year < 1980)
-                {
-                    modDate = 0x21;
-                    time = 0;
-                }
-                else
+                int runStart = 0;
+
+                for (int i = 0; i <= moves.size(); i++)
                 {
-                    modDate = cal.get(Calendar.DATE);
-                    modDate = (cal.get(Calendar.MONTH) + 1 << 5) | modDate;
-                    modDate = ((cal.get(Calendar.YEAR) - 1980) << 9) | modDate;
-                    time = cal.get(Calendar.SECOND) >> 1;
-                    time = (cal.get(Calendar.MINUTE) << 5) | time;
-                    time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | time;
+                    if (i < moves.size() && moves.get(i).isForward())
+                        continue;
+
+                    for (int j = i - 1; j >= runStart; j--)
+                        moves.get(j).run();
+
+                    if (i < moves.size())
+                        moves.get(i).run();
+
+                    runStart = i + 1;
                 }
 
-                outputStream.writeShort(time);
-                outputStream.writeShort(modDate);
+                channel.position(centralDirOffset);
+                buildCentralDirectory();
+
+                channel.truncate(channel.position());
+            }
+            finally
+            {
+                IOUtils.closeQuietly(channel);
+
+                CodecPool.shared().release(buffer);
+            }
+
+            return true;
+        }
 
-                outputStream.writeInt(entry.getCrc());
-                outputStream.writeInt(entry.getCompressedSize());
-                outputStream.writeInt(entry.getSize());
+        /**
+         * Resolves local header of entry written at given offset. Sizes and CRC are known from central directory,
+         * so they are always written to local header and data descriptor is dropped.
+         */
+        private XEntry createEntry(ApkArchive.Entry entry, long headerOffset) throws IOException
+        {
+            int flags = entry.getFlags() & ~ZIP_ENTRY_USES_DATA_DESCR;
+            flags |= 1 << 11;
 
-                outputStream
-                        .writeShort(entry.getName().getBytes(UTF8).length);
-                outputStream.writeShort(entry.getExtra().length);
-                outputStream.write(entry.getName().getBytes(UTF8));
-                outputStream.write(entry.getExtra(), 0,
-                        entry.getExtra().length);
+            final byte[] localExtra = ApkZipWriter.withZip64LocalField(AlignmentPolicy.stripAlignmentField(archive.getLocalExtra(entry)),
+                    entry.getCompressedSize(),
+                    entry.getSize());
 
+            if (entry.getMethod() != ZipEntry.STORED)
+            {
                 /*
-                 * Copy raw data.
+                 * The entry is compressed, copy it without padding.
                  */
+                return new XEntry(entry, headerOffset, flags, localExtra, 0, 0);
+            }
 
-                inputFileOffset += inputEntryHeaderSize;
+            /*
+             * Append alignment field to extra field, so entry data starts at aligned offset of output file.
+             */
+            long newOffset = headerOffset + ZIP_ENTRY_HEADER_LEN + entry.getNameBytes().length + localExtra.length;
 
-                final long sizeToCopy;
-                if ((flags & ZIP_ENTRY_USES_DATA_DESCR) != 0)
-                    sizeToCopy = (entry.isDirectory() ? 0 : entry
-                            .getCompressedSize())
-                            + ZIP_ENTRY_DATA_DESCRIPTOR_LEN;
-                else
-                    sizeToCopy = entry.isDirectory() ? 0 : entry
-                            .getCompressedSize();
+            int alignment = alignmentPolicy.getAlignment(entry.getName());
+            int padding = AlignmentPolicy.getPaddingFieldLength(newOffset, alignment);
 
-                if (sizeToCopy > 0)
-                {
-                    randomAccessFileInput.seek(inputFileOffset);
+            return new XEntry(entry, headerOffset, flags, localExtra, alignment, padding);
+        }
 
-                    long totalSizeCopied = 0;
-                    final byte[] buf = new byte[FILE_BUFFER];
-                    while (totalSizeCopied < sizeToCopy)
-                    {
-                        int read = randomAccessFileInput.read(
-                                buf,
-                                0,
-                                (int) Math.min(FILE_BUFFER, sizeToCopy
-                                        - totalSizeCopied));
-                        if (read <= 0)
-                            break;
-
-                        outputStream.write(buf, 0, read);
-                        totalSizeCopied += read;
-                    }
-                }
+        /**
+         * Writes local header, original "extra" field is followed by alignment field.
+         */
+        private void putLocalHeader(ByteBuffer header, XEntry xentry)
+        {
+            final ApkArchive.Entry entry = xentry.entry;
+            final boolean zip64 = ApkZipWriter.isZip64(entry.getCompressedSize(), entry.getSize());
 
-                inputFileOffset += sizeToCopy;
-            }
+            header.putInt(ApkArchive.LOCAL_HEADER_SIGNATURE);
+            header.putShort((short) (zip64 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION));
+            header.putShort((short) xentry.flags);
+            header.putShort((short) entry.getMethod());
+            header.putShort((short) xentry.dosTime);
+            header.putShort((short) xentry.dosDate);
+
+            /*
+             * Both sizes are in ZIP64 extra field, when one of them does not fit.
+             */
+            header.putInt((int) entry.getCrc());
+            header.putInt(zip64 ? (int) ApkArchive.ZIP64_MAGIC : (int) entry.getCompressedSize());
+            header.putInt(zip64 ? (int) ApkArchive.ZIP64_MAGIC : (int) entry.getSize());
+
+            header.putShort((short) xentry.nameBytes.length);
+            header.putShort((short) (xentry.localExtra.length + xentry.padding));
+            header.put(xentry.nameBytes);
+            header.put(xentry.localExtra);
+
+            AlignmentPolicy.putPaddingField(header, xentry.padding, xentry.alignment);
         }
 
         /**
@@ -333,121 +370,235 @@ public class ApkZipalign
          */
         private void buildCentralDirectory() throws IOException
         {
-            final long centralDirOffset = outputStream.totalWritten;
+            final long centralDirOffset = channel.position();
 
             for (XEntry xentry : entries)
             {
                 /*
                  * Write entry.
                  */
-                final ZipEntry entry = xentry.entry;
-
-                int modDate;
-                int time;
-                GregorianCalendar cal = new GregorianCalendar();
-                cal.setTime(new Date(entry.getTime()));
-                int year = cal.get(Calendar.YEAR);
-                if (year < 1980)
-                {
-                    modDate = 0x21;
-                    time = 0;
-                }
-                else
-                {
-                    modDate = cal.get(Calendar.DATE);
-                    modDate = (cal.get(Calendar.MONTH) + 1 << 5) | modDate;
-                    modDate = ((cal.get(Calendar.YEAR) - 1980) << 9) | modDate;
-                    time = cal.get(Calendar.SECOND) >> 1;
-                    time = (cal.get(Calendar.MINUTE) << 5) | time;
-                    time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | time;
-                }
-
-                outputStream.writeInt(ZipFile.CENSIG); // CEN header signature
-                outputStream.writeShort(ZIP_ENTRY_VERSION); // version made by
-                outputStream.writeShort(ZIP_ENTRY_VERSION); // version needed
-                // to
-                // extract
-                outputStream.writeShort(xentry.flags); // general purpose bit
-                // flag
-                outputStream.writeShort(entry.getMethod()); // compression
-                // method
-                outputStream.writeShort(time);
-                outputStream.writeShort(modDate);
-                outputStream.writeInt(entry.getCrc()); // crc-32
-                outputStream.writeInt(entry.getCompressedSize()); // compressed
-                // size
-                outputStream.writeInt(entry.getSize()); // uncompressed size
-                final byte[] nameBytes = entry.getName().getBytes(UTF8);
-                outputStream.writeShort(nameBytes.length);
-                outputStream.writeShort(entry.getExtra() != null ? entry
-                        .getExtra().length - xentry.padding : 0);
-                final byte[] commentBytes;
-                if (entry.getComment() != null)
-                {
-                    commentBytes = entry.getComment().getBytes(UTF8);
-                    outputStream.writeShort(Math.min(commentBytes.length,
-                            0xffff));
-                }
-                else
-                {
-                    commentBytes = null;
-                    outputStream.writeShort(0);
-                }
-                outputStream.writeShort(0); // starting disk number
-                outputStream.writeShort(0); // internal file attributes
-                // (unused)
-                outputStream.writeInt(0); // external file attributes (unused)
-                outputStream.writeInt(xentry.headerOffset); // relative offset
-                // of
-                // local
-                // header
-                outputStream.write(nameBytes);
-                if (entry.getExtra() != null)
-                    outputStream.write(entry.getExtra(), 0,
-                            entry.getExtra().length - xentry.padding);
-                if (commentBytes != null)
-                    outputStream.write(commentBytes, 0,
-                            Math.min(commentBytes.length, 0xffff));
+                final ApkArchive.Entry entry = xentry.entry;
+
+                final byte[] nameBytes = xentry.nameBytes;
+                final byte[] extra = ApkZipWriter.withZip64CentralField(entry.getExtra(), entry.getCompressedSize(), entry.getSize(), xentry.headerOffset);
+                final byte[] commentBytes = entry.getComment();
+                final boolean zip64 = ApkZipWriter.isZip64(entry.getCompressedSize(), entry.getSize()) || xentry.headerOffset >= ApkArchive.ZIP64_MAGIC;
+                final int version = zip64 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION;
+
+                final ByteBuffer header = reserve(ApkArchive.CENTRAL_HEADER_LEN + nameBytes.length + extra.length + commentBytes.length);
+
+                header.putInt(ApkArchive.CENTRAL_HEADER_SIGNATURE); // CEN header signature
+                header.putShort((short) version); // version made by
+                header.putShort((short) version); // version needed to extract
+                header.putShort((short) xentry.flags); // general purpose bit flag
+                header.putShort((short) entry.getMethod()); // compression method
+                header.putShort((short) xentry.dosTime);
+                header.putShort((short) xentry.dosDate);
+                header.putInt((int) entry.getCrc()); // crc-32
+                header.putInt(ApkZipWriter.toZip32(entry.getCompressedSize())); // compressed size
+                header.putInt(ApkZipWriter.toZip32(entry.getSize())); // uncompressed size
+                header.putShort((short) nameBytes.length);
+                header.putShort((short) extra.length);
+                header.putShort((short) commentBytes.length);
+                header.putShort((short) 0); // starting disk number
+                header.putShort((short) 0); // internal file attributes (unused)
+                header.putInt(0); // external file attributes (unused)
+                header.putInt(ApkZipWriter.toZip32(xentry.headerOffset)); // relative offset of local header
+                header.put(nameBytes);
+                header.put(extra);
+                header.put(commentBytes);
             }// for xentry
 
 
             /*
              * Write the end of central directory.
              */
-            final long centralDirSize = outputStream.totalWritten - centralDirOffset;
+            flush();
+
+            final long centralDirSize = channel.position() - centralDirOffset;
 
             final int entryCount = entries.size();
+            final byte[] commentBytes = archive.getComment();
+
+            /*
+             * ZIP64 end of central directory record and its locator are written only when needed.
+             */
+            final ByteBuffer header = reserve(ApkZipWriter.getEndOfCentralDirectoryLength(entryCount, centralDirSize, centralDirOffset, commentBytes));
+            ApkZipWriter.putEndOfCentralDirectory(header, entryCount, centralDirSize, centralDirOffset, commentBytes);
+
+            flush();
+        }
 
-            outputStream.writeInt(ZipFile.ENDSIG); // END record signature
-            outputStream.writeShort(0); // number of this disk
-            outputStream.writeShort(0); // central directory start disk
-            outputStream.writeShort(entryCount); // number of directory entries
-            // on
-            // disk
-            outputStream.writeShort(entryCount); // total number of directory
-            // entries
-            outputStream.writeInt(centralDirSize); // length of central
-            // directory
-            outputStream.writeInt(centralDirOffset); // offset of central
-            // directory
-            if (zipFile.getComment() != null)
+        /**
+         * Returns header buffer with at least length bytes remaining, buffered headers are flushed to output when full.
+         */
+        private ByteBuffer reserve(int length) throws IOException
+        {
+            if (buffer.remaining() < length)
             {
-                final byte[] bytes = zipFile.getComment().getBytes(UTF8);
-                outputStream.writeShort(bytes.length);
-                outputStream.write(bytes);
+                flush();
+
+                if (buffer.capacity() < length)
+                {
+                    CodecPool.shared().release(buffer);
+                    buffer = CodecPool.shared().acquireBuffer(length).order(ByteOrder.LITTLE_ENDIAN);
+                }
             }
-            else
+
+            return buffer;
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            buffer.clear();
+        }
+
+        /**
+         * Moves entry data within the file and writes its new local header in front of it.
+         */
+        private class EntryMove
+        {
+            private final ByteBuffer header;
+            private final long source;
+            private final long target;
+            private final long length;
+
+            EntryMove(ByteBuffer header, long source, long target, long length)
             {
-                outputStream.writeShort(0);
+                this.header = header;
+                this.source = source;
+                this.target = target;
+                this.length = length;
             }
 
-            outputStream.flush();
+            boolean isForward()
+            {
+                return target > source;
+            }
+
+            void run() throws IOException
+            {
+                if (isForward())
+                {
+                    for (long remaining = length; remaining > 0; )
+                    {
+                        int chunk = (int) Math.min(remaining, buffer.capacity());
+                        remaining -= chunk;
+
+                        copy(source + remaining, target + remaining, chunk);
+                    }
+                }
+                else if (target < source)
+                {
+                    for (long offset = 0; offset < length; )
+                    {
+                        int chunk = (int) Math.min(length - offset, buffer.capacity());
+
+                        copy(source + offset, target + offset, chunk);
+                        offset += chunk;
+                    }
+                }
+
+                header.flip();
+
+                for (long position = target - header.remaining(); header.hasRemaining(); )
+                    position += channel.write(header, position);
+            }
+
+            /**
+             * Chunk is read whole before it is written, so overlapping source and target are fine.
+             */
+            private void copy(long source, long target, int chunk) throws IOException
+            {
+                buffer.clear().limit(chunk);
+
+                while (buffer.hasRemaining())
+                {
+                    if (channel.read(buffer, source + buffer.position()) < 0)
+                        throw new EOFException("Entry data out of bounds of file: " + inputFile);
+                }
+
+                buffer.flip();
+
+                while (buffer.hasRemaining())
+                    target += channel.write(buffer, target);
+
+                buffer.clear();
+            }
         }
     }
 
-    public void zipalign(File unsignedApkFile, File zipalignedFile) throws Exception
+    public void zipalign(File unsignedApkFile, File zipalignedFile) throws IOException
     {
         new ZipAligner(unsignedApkFile, zipalignedFile).run();
     }
 
-}
\ No newline at end of file
+    public void zipalign(File unsignedApkFile, File zipalignedFile, AlignmentPolicy alignmentPolicy) throws IOException
+    {
+        new ZipAligner(unsignedApkFile, alignmentPolicy, zipalignedFile).run();
+    }
+
+    /**
+     * Aligns APK in place, only entries following the first misaligned one are rewritten.
+     *
+     * @return false when the file is aligned already and was not modified.
+     */
+    public boolean zipalignInPlace(File apkFile) throws IOException
+    {
+        return zipalignInPlace(apkFile, new AlignmentPolicy());
+    }
+
+    public boolean zipalignInPlace(File apkFile, AlignmentPolicy alignmentPolicy) throws IOException
+    {
+        return new ZipAligner(apkFile, alignmentPolicy, apkFile).runInPlace();
+    }
+
+    public boolean isAligned(File apkFile) throws IOException
+    {
+        return findMisalignedEntry(apkFile, new AlignmentPolicy()) == null;
+    }
+
+    /**
+     * Checks alignment of stored entries without copying anything, local headers are read from memory-mapped archive.
+     * Returns name of first misaligned entry, or null when the archive is aligned.
+     */
+    public String findMisalignedEntry(File apkFile, AlignmentPolicy alignmentPolicy) throws IOException
+    {
+        try (ApkArchive archive = new ApkArchive(apkFile))
+        {
+            ApkArchive.Entry entry = findMisalignedEntry(archive, sortByOffset(archive), alignmentPolicy);
+
+            return entry != null ? entry.getName() : null;
+        }
+    }
+
+    private static ApkArchive.Entry findMisalignedEntry(ApkArchive archive, List<ApkArchive.Entry> sortedEntries, AlignmentPolicy alignmentPolicy) throws IOException
+    {
+        for (ApkArchive.Entry entry : sortedEntries)
+        {
+            if (entry.getMethod() != ZipEntry.STORED)
+                continue;
+
+            if (archive.getDataOffset(entry) % alignmentPolicy.getAlignment(entry.getName()) != 0)
+                return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Entries in order of their local headers, central directory may list them in any order.
+     */
+    private static List<ApkArchive.Entry> sortByOffset(ApkArchive archive)
+    {
+        List<ApkArchive.Entry> entries = new ArrayList<>(archive.getEntries());
+        entries.sort(Comparator.comparingLong(ApkArchive.Entry::getLocalHeaderOffset));
+
+        return entries;
+    }
+}
@@ -6,23 +6,38 @@
 
 package com.alloc64.apktools.apk.tools;
 
+import com.alloc64.apktools.apk.ApkArchive;
+import com.alloc64.apktools.keystore.KeystoreInfo;
+
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 public class ApkZipper
 {
@@ -30,105 +45,662 @@ public class ApkZipper
             "jpg|jpeg|png|gif|wav|mp2|mp3|ogg|aac|mpg|mpeg|mid|midi|smf|jet|rtttl|imy|xmf|mp4|" +
             "m4a|m4v|3gp|3gpp|3g2|3gpp2|amr|awb|wma|wmv|webm|mkv)$");
 
-    private byte[] buffer = new byte[1024];
-    private CRC32 crc = new CRC32();
+    private static final int UNZIP_BUFFER = 64 * 1024;
+    private static final int FILE_BUFFER = 32 * 1024;
+
+    private volatile int threadCount = 1;
+    private volatile CompressionPolicy compressionPolicy = new SourcePreservingCompressionPolicy();
+
+    /**
+     * Counts of entries copied from reference archive and entries compressed again.
+     */
+    public static class ZipResult
+    {
+        private int reusedCount;
+        private int reencodedCount;
+        private final CompressionStats compressionStats = new CompressionStats();
+
+        public int getReusedCount()
+        {
+            return reusedCount;
+        }
+
+        public int getReencodedCount()
+        {
+            return reencodedCount;
+        }
+
+        public int getEntryCount()
+        {
+            return reusedCount + reencodedCount;
+        }
+
+        /**
+         * Compression of re-encoded entries, reused entries are not counted.
+         */
+        public CompressionStats getCompressionStats()
+        {
+            return compressionStats;
+        }
 
-    public void zip(final File folder, final File zipFile) throws IOException
+        @Override
+        public String toString()
+        {
+            return String.format("%d entries reused, %d re-encoded", reusedCount, reencodedCount);
+        }
+    }
+
+    private static class PendingEntry
     {
-        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile)))
+        final ApkArchive.Entry referenceEntry;
+
+        Future<ApkZipWriter.CompressedEntry> future;
+        byte[] referenceDigest;
+
+        PendingEntry(ApkArchive.Entry referenceEntry)
         {
-            processFolder(folder, zipOutputStream, folder.getPath().length() + 1);
+            this.referenceEntry = referenceEntry;
         }
     }
 
-    public List<File> unzip(File zipFile, File outputFolder) throws IOException
+    /**
+     * Returns method an entry of given name should be stored with, media files are not compressed.
+     */
+    public static int getCompressionMethod(String fileName)
+    {
+        String ext = FilenameUtils.getExtension(fileName);
+
+        if (ext.isEmpty() || !NO_COMPRESS_PATTERN.matcher(ext).find())
+            return ZipEntry.DEFLATED;
+
+        return ZipEntry.STORED;
+    }
+
+    public int getThreadCount()
     {
-        List<File> result = new ArrayList<>();
+        return threadCount;
+    }
+
+    /**
+     * Sets number of threads compressing or extracting entries in parallel, 1 means entries are processed sequentially.
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+
+        this.threadCount = threadCount;
+    }
+
+    public CompressionPolicy getCompressionPolicy()
+    {
+        return compressionPolicy;
+    }
+
+    /**
+     * Sets policy deciding compression of files which are not copied from reference archive. By default entries keep
+     * their method from reference archive, resources.arsc is stored and new media files are stored.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy)
+    {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    public ZipResult zip(final File folder, final File zipFile) throws IOException
+    {
+        return zip(folder, zipFile, null);
+    }
+
+    /**
+     * Zips folder, files which are identical (size and CRC32) to entries of referenceZipFile
+     * are copied from it already compressed, without running deflater again.
+     */
+    public ZipResult zip(final File folder, final File zipFile, final File referenceZipFile) throws IOException
+    {
+        return zip(folder, zipFile, referenceZipFile, (ApkV1SchemeSigner) null);
+    }
+
+    /**
+     * Zips folder, signs it with JAR signature and aligns stored entries in a single pass. Entry digests are
+     * computed while the entries are read for zipping, signature files are appended at the end.
+     */
+    public ZipResult zip(final File folder, final File zipFile, final File referenceZipFile, final KeystoreInfo keystore) throws IOException, GeneralSecurityException
+    {
+        return zip(folder, zipFile, referenceZipFile, new ApkV1SchemeSigner(keystore));
+    }
+
+    /**
+     * Same as {@link #zip(File, File, File, KeystoreInfo)} with prepared JAR signer, e.g. one marked for v2/v3 signatures
+     * by {@link ApkSigner#createV1Signer(KeystoreInfo)}.
+     */
+    public ZipResult zip(final File folder, final File zipFile, final File referenceZipFile, final ApkV1SchemeSigner signer) throws IOException
+    {
+        return zip(folder, zipFile, referenceZipFile, signer, null);
+    }
+
+    /**
+     * Zips folder extracted from referenceZipFile, files unchanged since extraction recorded in snapshot are copied
+     * from it without reading them. Other files are compared by size and CRC32. Stored entries are aligned as by zipalign.
+     */
+    public ZipResult zip(final File folder, final File zipFile, final File referenceZipFile, final ApkV1SchemeSigner signer, final ExtractionSnapshot snapshot) throws IOException
+    {
+        final int threadCount = this.threadCount;
+        final CompressionPolicy compressionPolicy = this.compressionPolicy;
+
+        ZipResult result = new ZipResult();
+        ApkArchive reference = referenceZipFile != null && referenceZipFile.exists() ? new ApkArchive(referenceZipFile) : null;
+
+        try (ApkZipWriter writer = new ApkZipWriter(zipFile))
+        {
+            if (signer != null)
+                writer.setV1Signer(signer);
+
+            List<String> names = listEntries(folder, reference);
+
+            if (threadCount > 1)
+                processFolderParallel(folder, names, writer, reference, snapshot, compressionPolicy, signer != null, threadCount, zipFile.getAbsoluteFile().getParentFile(), result);
+            else
+                processFolder(folder, names, writer, reference, snapshot, compressionPolicy, signer != null, result);
 
-        int BUFFER = 8 * 1024;
-        ZipFile zip = new ZipFile(zipFile);
+            if (snapshot != null)
+                copyDeferredEntries(folder, writer, reference, snapshot, compressionPolicy, signer != null, result);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(reference);
+        }
 
-        Enumeration zipFileEntries = zip.entries();
+        return result;
+    }
 
-        while (zipFileEntries.hasMoreElements())
+    /**
+     * Copies deferred entries which were not extracted meanwhile from reference archive as is. Entries which cannot be reused
+     * by compression policy are extracted and compressed again.
+     */
+    private static void copyDeferredEntries(File folder, ApkZipWriter writer, ApkArchive reference, ExtractionSnapshot snapshot, CompressionPolicy compressionPolicy, boolean sign, ZipResult result) throws IOException
+    {
+        for (String name : snapshot.getDeferredEntries())
         {
-            ZipEntry entry = (ZipEntry) zipFileEntries.nextElement();
-            String currentEntry = entry.getName();
+            if (sign && ApkV1SchemeSigner.isSignatureFile(name) || new File(folder, name).exists())
+                continue;
 
-            File destFile = new File(outputFolder, currentEntry);
-            File destinationParent = destFile.getParentFile();
+            ApkArchive.Entry referenceEntry = reference != null ? reference.getEntry(name) : null;
 
-            destinationParent.mkdirs();
+            if (referenceEntry == null)
+                throw new FileNotFoundException("Deferred entry " + name + " is missing in reference archive.");
 
-            if (!entry.isDirectory())
+            if (!compressionPolicy.canReuse(name, referenceEntry.getMethod()))
             {
+                File file = new File(folder, name);
+                file.getParentFile().mkdirs();
+
+                extract(reference, Collections.singletonList(referenceEntry), Collections.singletonList(file), null, 0, 1);
+                snapshot.undefer(name);
+
+                writeEntry(writer, name, file, referenceEntry, compressionPolicy, result);
+                continue;
+            }
+
+            writer.copyEntry(reference, referenceEntry);
+            result.reusedCount++;
+        }
+    }
+
+    /**
+     * Extracts archive, central directory is partitioned into contiguous ranges of similar compressed size,
+     * each extracted by its own worker. Stored entries are transferred directly from the archive file.
+     */
+    public List<File> unzip(File zipFile, File outputFolder) throws IOException
+    {
+        return unzip(zipFile, outputFolder, null);
+    }
+
+    /**
+     * Extracts archive and records state of extracted files to snapshot (if any), so that unchanged files
+     * can be recognized when the folder is zipped again.
+     */
+    public List<File> unzip(File zipFile, File outputFolder, ExtractionSnapshot snapshot) throws IOException
+    {
+        return unzip(zipFile, outputFolder, snapshot, null);
+    }
+
+    /**
+     * Extracts only files with names accepted by filter (all when null), other files are deferred in snapshot
+     * and can be extracted later by {@link #extractEntry(File, String, File, ExtractionSnapshot)}.
+     */
+    public List<File> unzip(File zipFile, File outputFolder, ExtractionSnapshot snapshot, Predicate<String> filter) throws IOException
+    {
+        if (filter != null && snapshot == null)
+            throw new IllegalArgumentException("Snapshot is required to defer entries.");
+
+        outputFolder.mkdirs();
+
+        try (ApkArchive archive = new ApkArchive(zipFile))
+        {
+            List<ApkArchive.Entry> entries = new ArrayList<>();
+            List<File> result = new ArrayList<>();
+
+            for (ApkArchive.Entry entry : archive.getEntries())
+            {
+                File destFile = new File(outputFolder, entry.getName());
+
+                if (entry.isDirectory())
+                {
+                    destFile.mkdirs();
+                    continue;
+                }
+
+                if (filter != null && !filter.test(entry.getName()))
+                {
+                    snapshot.defer(entry.getName());
+                    continue;
+                }
+
+                destFile.getParentFile().mkdirs();
+
+                entries.add(entry);
                 result.add(destFile);
+            }
 
-                BufferedInputStream is = new BufferedInputStream(zip.getInputStream(entry));
+            int partitions = Math.max(1, Math.min(threadCount, entries.size()));
+            long[] lastModified = snapshot != null ? new long[entries.size()] : null;
 
-                int currentByte;
-                byte data[] = new byte[BUFFER];
+            if (partitions == 1)
+            {
+                extract(archive, entries, result, lastModified, 0, entries.size());
+                addToSnapshot(snapshot, entries, lastModified);
 
-                FileOutputStream fos = new FileOutputStream(destFile);
-                BufferedOutputStream dest = new BufferedOutputStream(fos, BUFFER);
+                return result;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(partitions);
+
+            try
+            {
+                List<Future<Void>> futureList = new ArrayList<>();
 
-                while ((currentByte = is.read(data, 0, BUFFER)) != -1)
-                    dest.write(data, 0, currentByte);
+                long totalSize = 0;
+                for (ApkArchive.Entry entry : entries)
+                    totalSize += entry.getCompressedSize();
 
-                dest.flush();
-                dest.close();
-                is.close();
+                long partitionSize = totalSize / partitions + 1;
+                long currentSize = 0;
+                int from = 0;
+
+                for (int i = 0; i < entries.size(); i++)
+                {
+                    currentSize += entries.get(i).getCompressedSize();
+
+                    if (currentSize < partitionSize && i < entries.size() - 1)
+                        continue;
+
+                    final int start = from;
+                    final int end = i + 1;
+
+                    futureList.add(executor.submit(() ->
+                    {
+                        extract(archive, entries, result, lastModified, start, end);
+                        return null;
+                    }));
+
+                    from = end;
+                    currentSize = 0;
+                }
+
+                for (Future<Void> future : futureList)
+                {
+                    try
+                    {
+                        future.get();
+                    }
+                    catch (ExecutionException e)
+                    {
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException) e.getCause();
+
+                        throw new IllegalStateException("Unable to unzip file: " + zipFile, e.getCause());
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while unzipping file: " + zipFile);
+                    }
+                }
             }
+            finally
+            {
+                executor.shutdownNow();
+            }
+
+            addToSnapshot(snapshot, entries, lastModified);
+
+            return result;
         }
+    }
 
-        return result;
+    /**
+     * Extracts single entry deferred by {@link #unzip(File, File, ExtractionSnapshot, Predicate)}, or any entry when snapshot is null.
+     */
+    public File extractEntry(File zipFile, String name, File outputFolder, ExtractionSnapshot snapshot) throws IOException
+    {
+        try (ApkArchive archive = new ApkArchive(zipFile))
+        {
+            ApkArchive.Entry entry = archive.getEntry(name);
+
+            if (entry == null || entry.isDirectory())
+                throw new FileNotFoundException("Entry " + name + " not found in: " + zipFile);
+
+            File destFile = new File(outputFolder, name);
+            destFile.getParentFile().mkdirs();
+
+            List<ApkArchive.Entry> entries = Collections.singletonList(entry);
+            long[] lastModified = snapshot != null ? new long[1] : null;
+
+            extract(archive, entries, Collections.singletonList(destFile), lastModified, 0, 1);
+
+            if (snapshot != null)
+            {
+                addToSnapshot(snapshot, entries, lastModified);
+                snapshot.undefer(name);
+            }
+
+            return destFile;
+        }
     }
 
-    private void processFolder(final File folder, final ZipOutputStream zos, final int prefixLength) throws IOException
+    private static void addToSnapshot(ExtractionSnapshot snapshot, List<ApkArchive.Entry> entries, long[] lastModified)
     {
-        for (final File file : folder.listFiles())
+        if (snapshot == null)
+            return;
+
+        for (int i = 0; i < entries.size(); i++)
         {
-            if (file.isDirectory())
+            ApkArchive.Entry entry = entries.get(i);
+
+            if (lastModified[i] > 0)
+                snapshot.add(entry.getName(), entry.getSize(), lastModified[i], entry.getCrc());
+        }
+    }
+
+    /**
+     * Extracts entries of given range. When lastModified is given, files get modification time of their entries,
+     * files whose time could not be set are left out of it.
+     */
+    private static void extract(ApkArchive archive, List<ApkArchive.Entry> entries, List<File> destFiles, long[] lastModified, int from, int to) throws IOException
+    {
+        CodecPool codecs = CodecPool.shared();
+        Inflater inflater = codecs.acquireInflater();
+        byte[] data = codecs.acquireArray(UNZIP_BUFFER);
+
+        try
+        {
+            for (int i = from; i < to; i++)
             {
-                processFolder(file, zos, prefixLength);
-                continue;
+                ApkArchive.Entry entry = entries.get(i);
+                File destFile = destFiles.get(i);
+
+                try (FileOutputStream fos = new FileOutputStream(destFile))
+                {
+                    if (entry.getMethod() == ZipEntry.STORED)
+                    {
+                        archive.transferRawData(entry, fos.getChannel());
+                    }
+                    else
+                    {
+                        try (InputStream is = archive.getInputStream(entry, inflater))
+                        {
+                            int bytesRead;
+                            while ((bytesRead = is.read(data)) != -1)
+                                fos.write(data, 0, bytesRead);
+                        }
+                    }
+                }
+
+                if (lastModified != null)
+                {
+                    long time = entry.getTime();
+
+                    if (time > 0 && destFile.setLastModified(time))
+                        lastModified[i] = destFile.lastModified();
+                }
             }
+        }
+        finally
+        {
+            codecs.release(inflater);
+            codecs.release(data);
+        }
+    }
 
-            String ext = FilenameUtils.getExtension(file.getName());
+    private static void processFolder(final File folder, final List<String> names, final ApkZipWriter writer, final ApkArchive reference, final ExtractionSnapshot snapshot, final CompressionPolicy compressionPolicy, final boolean sign, final ZipResult result) throws IOException
+    {
+        for (final String name : names)
+        {
+            File file = new File(folder, name);
+
+            if (sign && ApkV1SchemeSigner.isSignatureFile(name))
+                continue;
 
-            ZipEntry entry = new ZipEntry(file.getPath().substring(prefixLength));
-            entry.setCompressedSize(-1);
+            ApkArchive.Entry referenceEntry = reference != null ? reference.getEntry(name) : null;
+            MessageDigest digest = sign ? ApkV1SchemeSigner.createDigest() : null;
 
-            if (ext.isEmpty() || !NO_COMPRESS_PATTERN.matcher(ext).find())
+            if (isReusable(name, file, referenceEntry, snapshot, compressionPolicy, digest))
             {
-                entry.setMethod(ZipEntry.DEFLATED);
+                writer.copyEntry(reference, referenceEntry, digest != null ? digest.digest() : null);
+                result.reusedCount++;
+
+                continue;
             }
-            else
+
+            writeEntry(writer, name, file, referenceEntry, compressionPolicy, result);
+        }
+    }
+
+    private static void writeEntry(ApkZipWriter writer, String name, File file, ApkArchive.Entry referenceEntry, CompressionPolicy compressionPolicy, ZipResult result) throws IOException
+    {
+        long cpuTime = CompressionStats.currentCpuTime();
+        CompressionPolicy.Compression compression = compressionPolicy.getCompression(name, file, referenceEntry != null ? referenceEntry.getMethod() : -1);
+        long compressedSize = writer.writeEntry(name, file, compression.getMethod(), compression.getLevel());
+
+        result.compressionStats.add(compression, file.length(), compressedSize, CompressionStats.currentCpuTime() - cpuTime);
+        result.reencodedCount++;
+    }
+
+    /**
+     * Returns true when file has the same content as reference entry. Files unchanged since extraction are not read,
+     * unless their digest is needed, others are compared by size and CRC32. Digest (if any) is updated when file is read.
+     */
+    private static boolean isReusable(String name, File file, ApkArchive.Entry referenceEntry, ExtractionSnapshot snapshot, CompressionPolicy compressionPolicy, MessageDigest digest) throws IOException
+    {
+        if (referenceEntry == null || referenceEntry.getSize() != file.length() || !compressionPolicy.canReuse(name, referenceEntry.getMethod()))
+            return false;
+
+        if (digest == null && snapshot != null && snapshot.isUnchanged(name, file, referenceEntry))
+            return true;
+
+        return referenceEntry.getCrc() == computeCrc(file, digest);
+    }
+
+    /**
+     * Compresses entries on worker threads into scatter buffers, results are written in order of names,
+     * so output is the same as with sequential zipping. Number of entries in flight is bounded.
+     */
+    private static void processFolderParallel(final File folder, final List<String> names, final ApkZipWriter writer, final ApkArchive reference, final ExtractionSnapshot snapshot, final CompressionPolicy compressionPolicy, final boolean sign, final int threadCount, final File spillFolder, final ZipResult result) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Deque<PendingEntry> pending = new ArrayDeque<>();
+
+        try
+        {
+            int next = 0;
+
+            while (next < names.size() || !pending.isEmpty())
             {
-                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-                crc.reset();
+                while (next < names.size() && pending.size() < threadCount * 2)
+                {
+                    String name = names.get(next++);
+                    File file = new File(folder, name);
+
+                    if (sign && ApkV1SchemeSigner.isSignatureFile(name))
+                        continue;
+
+                    PendingEntry pendingEntry = new PendingEntry(reference != null ? reference.getEntry(name) : null);
+
+                    pendingEntry.future = executor.submit(() ->
+                    {
+                        MessageDigest digest = sign ? ApkV1SchemeSigner.createDigest() : null;
 
-                int bytesRead;
-                while ((bytesRead = bis.read(buffer)) != -1)
-                    crc.update(buffer, 0, bytesRead);
+                        if (isReusable(name, file, pendingEntry.referenceEntry, snapshot, compressionPolicy, digest))
+                        {
+                            pendingEntry.referenceDigest = digest != null ? digest.digest() : null;
+                            return null;
+                        }
 
-                bis.close();
+                        long cpuTime = CompressionStats.currentCpuTime();
+                        CompressionPolicy.Compression compression = compressionPolicy.getCompression(name, file, pendingEntry.referenceEntry != null ? pendingEntry.referenceEntry.getMethod() : -1);
+                        ApkZipWriter.CompressedEntry compressedEntry = ApkZipWriter.compress(name, file, compression.getMethod(), compression.getLevel(), spillFolder, sign);
 
-                entry.setMethod(ZipEntry.STORED);
-                entry.setCompressedSize(file.length());
-                entry.setSize(file.length());
-                entry.setCrc(crc.getValue());
+                        result.compressionStats.add(compression, compressedEntry.getSize(), compressedEntry.getCompressedSize(), CompressionStats.currentCpuTime() - cpuTime);
+
+                        return compressedEntry;
+                    });
+
+                    pending.add(pendingEntry);
+                }
+
+                if (pending.isEmpty())
+                    continue;
+
+                PendingEntry entry = pending.poll();
+
+                try (ApkZipWriter.CompressedEntry compressedEntry = get(entry.future))
+                {
+                    if (compressedEntry == null)
+                    {
+                        writer.copyEntry(reference, entry.referenceEntry, entry.referenceDigest);
+                        result.reusedCount++;
+                    }
+                    else
+                    {
+                        writer.writeEntry(compressedEntry);
+                        result.reencodedCount++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (PendingEntry entry : pending)
+            {
+                if (!entry.future.cancel(true))
+                    discard(entry.future);
             }
 
-            zos.putNextEntry(entry);
+            executor.shutdownNow();
+        }
+    }
+
+    private static ApkZipWriter.CompressedEntry get(Future<ApkZipWriter.CompressedEntry> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IllegalStateException("Unable to compress entry.", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing entries.");
+        }
+    }
+
+    private static void discard(Future<ApkZipWriter.CompressedEntry> future)
+    {
+        try
+        {
+            ApkZipWriter.CompressedEntry compressedEntry = future.get();
 
-            try (FileInputStream is = new FileInputStream(file))
+            if (compressedEntry != null)
+                compressedEntry.close();
+        }
+        catch (Exception e)
+        {
+            // entry failed or was cancelled, nothing to clean up
+        }
+    }
+
+    /**
+     * Returns entry names of files in folder in the order they are zipped: files present in reference archive (if any)
+     * in order of its central directory, other files after them sorted by name. Listing order of the file system is not used.
+     */
+    private static List<String> listEntries(File folder, ApkArchive reference) throws IOException
+    {
+        SortedSet<String> files = new TreeSet<>();
+        listFiles(folder, folder.getPath().length() + 1, files);
+
+        List<String> result = new ArrayList<>(files.size());
+
+        if (reference != null)
+        {
+            for (ApkArchive.Entry entry : reference.getEntries())
             {
-                IOUtils.copy(is, zos);
+                if (files.remove(entry.getName()))
+                    result.add(entry.getName());
             }
+        }
+
+        result.addAll(files);
 
-            zos.closeEntry();
+        return result;
+    }
+
+    private static void listFiles(File folder, int prefixLength, Set<String> result) throws IOException
+    {
+        File[] files = folder.listFiles();
+
+        if (files == null)
+            throw new IOException("Unable to list folder: " + folder);
+
+        for (final File file : files)
+        {
+            if (file.isDirectory())
+                listFiles(file, prefixLength, result);
+            else
+                result.add(file.getPath().substring(prefixLength).replace(File.separatorChar, '/'));
         }
     }
 
+    /**
+     * Computes CRC32 of file, digest (if any) is updated in the same pass. Without digest large files are hashed in parallel.
+     */
+    private static long computeCrc(File file, MessageDigest digest) throws IOException
+    {
+        if (digest == null)
+            return ChunkedCrc32.shared().compute(file);
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = CodecPool.shared().acquireArray(FILE_BUFFER);
+
+        try (FileInputStream is = new FileInputStream(file))
+        {
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, bytesRead);
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        finally
+        {
+            CodecPool.shared().release(buffer);
+        }
+
+        return crc.getValue();
+    }
 }
@@ -0,0 +1,242 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Computes CRC32 of files. Files of at least threshold size are split into contiguous slices which are
+ * memory mapped and hashed in parallel, partial checksums are joined with zlib's crc32_combine math.
+ */
+public class ChunkedCrc32
+{
+    public static final long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final int FILE_BUFFER = 32 * 1024;
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+    private static final long CRC32_POLYNOMIAL = 0xedb88320L;
+
+    private static class Holder
+    {
+        static final ChunkedCrc32 INSTANCE = new ChunkedCrc32();
+    }
+
+    private final long threshold;
+    private final int parallelism;
+
+    public ChunkedCrc32()
+    {
+        this(DEFAULT_THRESHOLD, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Files smaller than threshold or any file when parallelism is 1 are read sequentially.
+     */
+    public ChunkedCrc32(long threshold, int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+
+        this.threshold = threshold;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Shared instance with default threshold, created on first use independently of {@link ApkTools}.
+     */
+    public static ChunkedCrc32 shared()
+    {
+        return Holder.INSTANCE;
+    }
+
+    public long getThreshold()
+    {
+        return threshold;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public long compute(File file) throws IOException
+    {
+        long length = file.length();
+        int partitions = (int) Math.max(1, Math.min(parallelism, length / MAP_WINDOW));
+
+        if (length < threshold || partitions == 1)
+            return computeSequential(file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return computeParallel(channel, length, partitions, file);
+        }
+    }
+
+    /**
+     * Returns CRC32 of concatenation of two blocks, crc1 and crc2 are checksums of the blocks, length2 is length of the second one.
+     */
+    public static long combine(long crc1, long crc2, long length2)
+    {
+        if (length2 <= 0)
+            return crc1;
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = CRC32_POLYNOMIAL;
+
+        long row = 1;
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // apply length2 zero bytes to crc1, first square puts operator for one zero byte in even
+        do
+        {
+            square(even, odd);
+
+            if ((length2 & 1) != 0)
+                crc1 = times(even, crc1);
+
+            length2 >>>= 1;
+
+            if (length2 == 0)
+                break;
+
+            square(odd, even);
+
+            if ((length2 & 1) != 0)
+                crc1 = times(odd, crc1);
+
+            length2 >>>= 1;
+        }
+        while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long computeSequential(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = CodecPool.shared().acquireArray(FILE_BUFFER);
+
+        try (FileInputStream is = new FileInputStream(file))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                crc.update(buffer, 0, read);
+        }
+        finally
+        {
+            CodecPool.shared().release(buffer);
+        }
+
+        return crc.getValue();
+    }
+
+    private static long computeParallel(FileChannel channel, long length, int partitions, File file) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+
+        try
+        {
+            List<Future<Long>> futureList = new ArrayList<>();
+
+            long partitionSize = (length + partitions - 1) / partitions;
+
+            for (long start = 0; start < length; start += partitionSize)
+            {
+                final long from = start;
+                final long to = Math.min(length, start + partitionSize);
+
+                futureList.add(executor.submit(() -> computeSlice(channel, from, to)));
+            }
+
+            long crc = 0;
+            long position = 0;
+
+            for (Future<Long> future : futureList)
+            {
+                long sliceLength = Math.min(partitionSize, length - position);
+
+                try
+                {
+                    crc = combine(crc, future.get(), sliceLength);
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+
+                    throw new IllegalStateException("Unable to compute CRC32 of file: " + file, e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while computing CRC32 of file: " + file);
+                }
+
+                position += sliceLength;
+            }
+
+            return crc;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long computeSlice(FileChannel channel, long from, long to) throws IOException
+    {
+        CRC32 crc = new CRC32();
+
+        for (long position = from; position < to; position += MAP_WINDOW)
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, to - position)));
+
+        return crc.getValue();
+    }
+
+    private static long times(long[] matrix, long vector)
+    {
+        long sum = 0;
+
+        for (int i = 0; vector != 0; i++, vector >>>= 1)
+        {
+            if ((vector & 1) != 0)
+                sum ^= matrix[i];
+        }
+
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix)
+    {
+        for (int n = 0; n < 32; n++)
+            square[n] = times(matrix, matrix[n]);
+    }
+}
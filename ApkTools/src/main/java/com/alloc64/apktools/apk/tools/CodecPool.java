@@ -0,0 +1,301 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Process wide arena of raw (nowrap) deflaters by level, raw inflaters, byte arrays and direct byte buffers.
+ * Arrays and buffers are pooled in power of two size classes, acquired ones may be larger than requested.
+ * Every acquired object has to be released exactly once and must not be used after that.
+ */
+public class CodecPool
+{
+    public enum Resource
+    {
+        DEFLATER,
+        INFLATER,
+        ARRAY,
+        DIRECT_BUFFER
+    }
+
+    private static final int MIN_SIZE_CLASS = 12;
+    private static final int MAX_SIZE_CLASS = 20;
+    private static final int LEVELS = Deflater.BEST_COMPRESSION + 2;
+
+    private static class Pool<T>
+    {
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        private final int capacity;
+
+        Pool(int capacity)
+        {
+            this.capacity = capacity;
+        }
+
+        synchronized T poll()
+        {
+            return items.poll();
+        }
+
+        synchronized boolean offer(T item)
+        {
+            return items.size() < capacity && items.offer(item);
+        }
+
+        synchronized T[] drain(T[] array)
+        {
+            T[] result = items.toArray(array);
+            items.clear();
+
+            return result;
+        }
+    }
+
+    private static class Holder
+    {
+        static final CodecPool INSTANCE = new CodecPool();
+    }
+
+    private final Pool<Deflater>[] deflaters;
+    private final Pool<Inflater> inflaters;
+    private final Pool<byte[]>[] arrays;
+    private final Pool<ByteBuffer>[] buffers;
+
+    private final AtomicLongArray hits = new AtomicLongArray(Resource.values().length);
+    private final AtomicLongArray allocations = new AtomicLongArray(Resource.values().length);
+
+    public CodecPool()
+    {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Pool keeps at most capacity released objects of each kind, level and size class.
+     */
+    public CodecPool(int capacity)
+    {
+        this.deflaters = newPools(LEVELS);
+        this.inflaters = new Pool<>(capacity);
+        this.arrays = newPools(MAX_SIZE_CLASS + 1);
+        this.buffers = newPools(MAX_SIZE_CLASS + 1);
+
+        for (int i = 0; i < LEVELS; i++)
+            deflaters[i] = new Pool<>(capacity);
+
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++)
+        {
+            arrays[i] = new Pool<>(capacity);
+            buffers[i] = new Pool<>(capacity);
+        }
+    }
+
+    /**
+     * Process wide pool, created on first use independently of {@link ApkTools}.
+     */
+    public static CodecPool shared()
+    {
+        return Holder.INSTANCE;
+    }
+
+    public Deflater acquireDeflater(int level)
+    {
+        checkLevel(level);
+
+        Deflater deflater = deflaters[level + 1].poll();
+
+        if (deflater != null)
+        {
+            hits.incrementAndGet(Resource.DEFLATER.ordinal());
+            return deflater;
+        }
+
+        allocations.incrementAndGet(Resource.DEFLATER.ordinal());
+        return new Deflater(level, true);
+    }
+
+    public void release(Deflater deflater, int level)
+    {
+        checkLevel(level);
+
+        deflater.reset();
+
+        if (!deflaters[level + 1].offer(deflater))
+            deflater.end();
+    }
+
+    public Inflater acquireInflater()
+    {
+        Inflater inflater = inflaters.poll();
+
+        if (inflater != null)
+        {
+            hits.incrementAndGet(Resource.INFLATER.ordinal());
+            return inflater;
+        }
+
+        allocations.incrementAndGet(Resource.INFLATER.ordinal());
+        return new Inflater(true);
+    }
+
+    public void release(Inflater inflater)
+    {
+        inflater.reset();
+
+        if (!inflaters.offer(inflater))
+            inflater.end();
+    }
+
+    public byte[] acquireArray(int size)
+    {
+        int sizeClass = getSizeClass(size);
+
+        if (sizeClass <= MAX_SIZE_CLASS)
+        {
+            byte[] array = arrays[sizeClass].poll();
+
+            if (array != null)
+            {
+                hits.incrementAndGet(Resource.ARRAY.ordinal());
+                return array;
+            }
+        }
+
+        allocations.incrementAndGet(Resource.ARRAY.ordinal());
+        return new byte[sizeClass <= MAX_SIZE_CLASS ? 1 << sizeClass : size];
+    }
+
+    public void release(byte[] array)
+    {
+        int sizeClass = getReleaseSizeClass(array.length);
+
+        if (sizeClass >= 0)
+            arrays[sizeClass].offer(array);
+    }
+
+    /**
+     * Returns cleared direct buffer in big endian order.
+     */
+    public ByteBuffer acquireBuffer(int size)
+    {
+        int sizeClass = getSizeClass(size);
+
+        if (sizeClass <= MAX_SIZE_CLASS)
+        {
+            ByteBuffer buffer = buffers[sizeClass].poll();
+
+            if (buffer != null)
+            {
+                hits.incrementAndGet(Resource.DIRECT_BUFFER.ordinal());
+                return buffer;
+            }
+        }
+
+        allocations.incrementAndGet(Resource.DIRECT_BUFFER.ordinal());
+        return ByteBuffer.allocateDirect(sizeClass <= MAX_SIZE_CLASS ? 1 << sizeClass : size);
+    }
+
+    public void release(ByteBuffer buffer)
+    {
+        int sizeClass = getReleaseSizeClass(buffer.capacity());
+
+        if (sizeClass < 0 || !buffer.isDirect())
+            return;
+
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+
+        buffers[sizeClass].offer(buffer);
+    }
+
+    public long getHitCount(Resource resource)
+    {
+        return hits.get(resource.ordinal());
+    }
+
+    public long getAllocationCount(Resource resource)
+    {
+        return allocations.get(resource.ordinal());
+    }
+
+    /**
+     * Frees native memory of pooled deflaters and inflaters, buffers are left to garbage collector.
+     */
+    public void clear()
+    {
+        for (Pool<Deflater> pool : deflaters)
+        {
+            for (Deflater deflater : pool.drain(new Deflater[0]))
+                deflater.end();
+        }
+
+        for (Inflater inflater : inflaters.drain(new Inflater[0]))
+            inflater.end();
+
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++)
+        {
+            arrays[i].drain(new byte[0][]);
+            buffers[i].drain(new ByteBuffer[0]);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Resource resource : Resource.values())
+        {
+            if (sb.length() > 0)
+                sb.append(", ");
+
+            sb.append(String.format("%s: %d hits, %d allocations", resource, getHitCount(resource), getAllocationCount(resource)));
+        }
+
+        return sb.toString();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Pool<T>[] newPools(int length)
+    {
+        return new Pool[length];
+    }
+
+    private static void checkLevel(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+
+    /**
+     * Smallest size class holding size, classes above MAX_SIZE_CLASS are not pooled.
+     */
+    private static int getSizeClass(int size)
+    {
+        if (size <= 1 << MIN_SIZE_CLASS)
+            return MIN_SIZE_CLASS;
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Size class of released array or buffer, -1 when it is not pooled.
+     */
+    private static int getReleaseSizeClass(int capacity)
+    {
+        if (capacity < 1 << MIN_SIZE_CLASS || Integer.bitCount(capacity) != 1)
+            return -1;
+
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(capacity);
+        return sizeClass <= MAX_SIZE_CLASS ? sizeClass : -1;
+    }
+}
@@ -0,0 +1,68 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides how files are compressed when zipped, implementations are called concurrently by parallel zipping.
+ */
+public interface CompressionPolicy
+{
+    enum Compression
+    {
+        STORED(ZipEntry.STORED, 0),
+        FAST(ZipEntry.DEFLATED, Deflater.BEST_SPEED),
+        DEFAULT(ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION),
+        MAXIMUM(ZipEntry.DEFLATED, Deflater.BEST_COMPRESSION);
+
+        private final int method;
+        private final int level;
+
+        Compression(int method, int level)
+        {
+            this.method = method;
+            this.level = level;
+        }
+
+        public int getMethod()
+        {
+            return method;
+        }
+
+        public int getLevel()
+        {
+            return level;
+        }
+    }
+
+    /**
+     * Media files are stored, everything else is deflated with default level (see {@link ApkZipper#getCompressionMethod(String)}).
+     */
+    CompressionPolicy BY_EXTENSION = (name, file) -> ApkZipper.getCompressionMethod(file.getName()) == ZipEntry.STORED ? Compression.STORED : Compression.DEFAULT;
+
+    Compression getCompression(String name, File file) throws IOException;
+
+    /**
+     * Same as {@link #getCompression(String, File)}, sourceMethod is method of the entry in reference archive or -1 for new files.
+     */
+    default Compression getCompression(String name, File file, int sourceMethod) throws IOException
+    {
+        return getCompression(name, file);
+    }
+
+    /**
+     * Returns false when unchanged entry stored by sourceMethod in reference archive has to be compressed again.
+     */
+    default boolean canReuse(String name, int sourceMethod)
+    {
+        return true;
+    }
+}
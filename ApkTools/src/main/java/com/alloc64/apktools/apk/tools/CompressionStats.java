@@ -0,0 +1,138 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Entries compressed by each {@link CompressionPolicy.Compression}, their sizes and CPU time spent deciding and compressing them.
+ */
+public class CompressionStats
+{
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    public static class Counter
+    {
+        private int entryCount;
+        private long size;
+        private long compressedSize;
+        private long cpuTimeNanos;
+
+        Counter()
+        {
+        }
+
+        Counter(Counter counter)
+        {
+            this.entryCount = counter.entryCount;
+            this.size = counter.size;
+            this.compressedSize = counter.compressedSize;
+            this.cpuTimeNanos = counter.cpuTimeNanos;
+        }
+
+        public int getEntryCount()
+        {
+            return entryCount;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        public long getSavedBytes()
+        {
+            return size - compressedSize;
+        }
+
+        public long getCpuTimeNanos()
+        {
+            return cpuTimeNanos;
+        }
+    }
+
+    private final Map<CompressionPolicy.Compression, Counter> counters = new EnumMap<>(CompressionPolicy.Compression.class);
+
+    /**
+     * CPU time of current thread, or wall time when JVM does not measure it.
+     */
+    static long currentCpuTime()
+    {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported())
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+
+        return System.nanoTime();
+    }
+
+    synchronized void add(CompressionPolicy.Compression compression, long size, long compressedSize, long cpuTimeNanos)
+    {
+        Counter counter = counters.get(compression);
+
+        if (counter == null)
+            counters.put(compression, counter = new Counter());
+
+        counter.entryCount++;
+        counter.size += size;
+        counter.compressedSize += compressedSize;
+        counter.cpuTimeNanos += cpuTimeNanos;
+    }
+
+    /**
+     * Returns counter of given compression, or null when no entry was compressed by it.
+     */
+    public synchronized Counter get(CompressionPolicy.Compression compression)
+    {
+        Counter counter = counters.get(compression);
+        return counter != null ? new Counter(counter) : null;
+    }
+
+    public synchronized long getSavedBytes()
+    {
+        long result = 0;
+
+        for (Counter counter : counters.values())
+            result += counter.getSavedBytes();
+
+        return result;
+    }
+
+    public synchronized long getCpuTimeNanos()
+    {
+        long result = 0;
+
+        for (Counter counter : counters.values())
+            result += counter.cpuTimeNanos;
+
+        return result;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<CompressionPolicy.Compression, Counter> kvp : counters.entrySet())
+        {
+            Counter counter = kvp.getValue();
+
+            if (sb.length() > 0)
+                sb.append(", ");
+
+            sb.append(String.format("%s: %d entries, %d bytes saved, %d ms", kvp.getKey(), counter.entryCount, counter.getSavedBytes(), counter.cpuTimeNanos / 1000000));
+        }
+
+        return sb.toString();
+    }
+}
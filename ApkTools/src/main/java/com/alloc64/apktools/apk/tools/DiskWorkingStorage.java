@@ -0,0 +1,46 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+public class DiskWorkingStorage implements WorkingStorage
+{
+    private final File rootFolder;
+
+    public DiskWorkingStorage(File rootFolder)
+    {
+        this.rootFolder = rootFolder;
+    }
+
+    public File getRootFolder()
+    {
+        return rootFolder;
+    }
+
+    @Override
+    public File allocate(String name, long estimatedSize) throws IOException
+    {
+        File folder = new File(rootFolder, name + "-" + UUID.randomUUID());
+
+        if (!folder.mkdirs())
+            throw new IOException("Unable to create working folder: " + folder);
+
+        return folder;
+    }
+
+    @Override
+    public void release(File folder) throws IOException
+    {
+        if (folder.exists())
+            FileUtils.deleteDirectory(folder);
+    }
+}
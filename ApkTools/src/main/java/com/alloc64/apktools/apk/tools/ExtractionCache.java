@@ -0,0 +1,580 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.apk.ApkArchive;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Pristine extracted trees of APKs keyed by SHA-256 of the APK file. Output folders of jobs are populated by links
+ * to cached files, so the same APK is extracted only once. Least recently used trees are evicted when total size
+ * exceeds maxSize, trees used by running jobs are never evicted.
+ * <p>
+ * By default files are reflinked, so a job writing a file in place gets its own copy of changed blocks. On filesystems
+ * without reflinks files are copied. Hard links share content with cached file and with other jobs, so they are
+ * only safe for jobs which replace files (delete and create) instead of writing them in place. In place writes change
+ * modification time of cached file, such trees are detected and extracted again on next use.
+ */
+public class ExtractionCache
+{
+    public enum LinkMode
+    {
+        /**
+         * Copy on write clones (cp --reflink=always) on filesystems supporting them (btrfs, xfs), files are copied elsewhere.
+         */
+        REFLINK,
+        /**
+         * Files are shared with the cache and all concurrent jobs, jobs must not write them in place.
+         */
+        HARDLINK,
+        COPY
+    }
+
+    private static final String TREE_FOLDER = "tree";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final int MAX_DIGESTS = 256;
+
+    private static class CacheEntry
+    {
+        final String digest;
+        final File folder;
+        final long size;
+        final ExtractionSnapshot snapshot;
+
+        int users;
+        boolean stale;
+
+        CacheEntry(String digest, File folder, long size, ExtractionSnapshot snapshot)
+        {
+            this.digest = digest;
+            this.folder = folder;
+            this.size = size;
+            this.snapshot = snapshot;
+        }
+
+        File getTree()
+        {
+            return new File(folder, TREE_FOLDER);
+        }
+    }
+
+    private static class FileDigest
+    {
+        final long size;
+        final long lastModified;
+        final String digest;
+
+        FileDigest(long size, long lastModified, String digest)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private final File cacheFolder;
+    private final long maxSize;
+
+    private LinkMode linkMode = LinkMode.REFLINK;
+    private final Map<FileStore, Boolean> reflinkSupport = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private long hitCount;
+    private long missCount;
+
+    private final Map<String, FileDigest> digests = new LinkedHashMap<String, FileDigest>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileDigest> eldest)
+        {
+            return size() > MAX_DIGESTS;
+        }
+    };
+
+    public ExtractionCache(File cacheFolder, long maxSize) throws IOException
+    {
+        this.cacheFolder = cacheFolder;
+        this.maxSize = maxSize;
+
+        if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs())
+            throw new IOException("Unable to create cache folder: " + cacheFolder);
+
+        load();
+    }
+
+    public LinkMode getLinkMode()
+    {
+        return linkMode;
+    }
+
+    public void setLinkMode(LinkMode linkMode)
+    {
+        this.linkMode = linkMode;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Populates outputFolder with files of apkFile and records them to snapshot (if any).
+     * Returns true when cached tree was used, APK is extracted into cache first otherwise.
+     * APKs larger than maxSize are extracted directly into outputFolder.
+     */
+    public boolean extract(File apkFile, File outputFolder, ExtractionSnapshot snapshot) throws IOException
+    {
+        String digest = digest(apkFile);
+
+        CacheEntry entry = acquire(digest);
+        boolean hit = entry != null;
+
+        if (!hit)
+        {
+            entry = populate(apkFile, digest);
+
+            if (entry == null)
+            {
+                ApkTools.zipper().unzip(apkFile, outputFolder, snapshot);
+                return false;
+            }
+        }
+        else if (!entry.snapshot.isUnchanged(entry.getTree()))
+        {
+            release(entry, true);
+            return extract(apkFile, outputFolder, snapshot);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                hitCount++;
+            }
+
+            entry.folder.setLastModified(System.currentTimeMillis());
+        }
+
+        try
+        {
+            link(entry.getTree(), outputFolder);
+
+            if (snapshot != null)
+                snapshot.addAll(entry.snapshot);
+
+            return hit;
+        }
+        finally
+        {
+            release(entry, false);
+        }
+    }
+
+    private synchronized CacheEntry acquire(String digest)
+    {
+        CacheEntry entry = entries.get(digest);
+
+        if (entry != null)
+            entry.users++;
+
+        return entry;
+    }
+
+    private void release(CacheEntry entry, boolean stale)
+    {
+        File discarded = null;
+
+        synchronized (this)
+        {
+            entry.users--;
+
+            if (stale && !entry.stale)
+            {
+                entry.stale = true;
+                entries.remove(entry.digest);
+                size -= entry.size;
+            }
+
+            if (entry.stale && entry.users == 0)
+                discarded = rename(entry.folder);
+        }
+
+        delete(discarded);
+    }
+
+    /**
+     * Extracts APK into temporary folder and moves it to cache, returns acquired entry or null when APK does not fit.
+     */
+    private CacheEntry populate(File apkFile, String digest) throws IOException
+    {
+        synchronized (this)
+        {
+            missCount++;
+        }
+
+        long totalSize = 0;
+
+        try (ApkArchive archive = new ApkArchive(apkFile))
+        {
+            for (ApkArchive.Entry entry : archive.getEntries())
+                totalSize += entry.getSize();
+        }
+
+        if (totalSize > maxSize)
+            return null;
+
+        File tempFolder = new File(cacheFolder, TEMP_PREFIX + UUID.randomUUID());
+        ExtractionSnapshot snapshot = new ExtractionSnapshot();
+
+        try
+        {
+            ApkTools.zipper().unzip(apkFile, new File(tempFolder, TREE_FOLDER), snapshot);
+
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tempFolder, SNAPSHOT_FILE)))))
+            {
+                snapshot.write(os);
+            }
+
+            List<File> evicted;
+            CacheEntry entry;
+
+            synchronized (this)
+            {
+                entry = entries.get(digest);
+
+                if (entry == null)
+                {
+                    File folder = new File(cacheFolder, digest);
+                    Files.move(tempFolder.toPath(), folder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+                    entry = new CacheEntry(digest, folder, totalSize, snapshot);
+                    entries.put(digest, entry);
+                    size += totalSize;
+                }
+
+                entry.users++;
+                evicted = evict();
+            }
+
+            for (File folder : evicted)
+                delete(folder);
+
+            return entry;
+        }
+        finally
+        {
+            delete(tempFolder);
+        }
+    }
+
+    /**
+     * Removes least recently used entries not used by any job until cache fits maxSize, returns renamed folders to be deleted.
+     */
+    private List<File> evict()
+    {
+        List<File> result = new ArrayList<>();
+
+        for (Iterator<CacheEntry> it = entries.values().iterator(); size > maxSize && it.hasNext(); )
+        {
+            CacheEntry entry = it.next();
+
+            if (entry.users > 0)
+                continue;
+
+            it.remove();
+            size -= entry.size;
+
+            result.add(rename(entry.folder));
+        }
+
+        return result;
+    }
+
+    private File rename(File folder)
+    {
+        File target = new File(cacheFolder, TEMP_PREFIX + UUID.randomUUID());
+        return folder.renameTo(target) ? target : folder;
+    }
+
+    private static void delete(File folder)
+    {
+        if (folder != null)
+            FileUtils.deleteQuietly(folder);
+    }
+
+    private void link(File tree, File outputFolder) throws IOException
+    {
+        if (!outputFolder.isDirectory() && !outputFolder.mkdirs())
+            throw new IOException("Unable to create folder: " + outputFolder);
+
+        final LinkMode linkMode = this.linkMode;
+
+        if (linkMode == LinkMode.REFLINK && isReflinkSupported(outputFolder))
+        {
+            if (!reflink(tree.getPath() + "/.", outputFolder))
+                throw new IOException("Unable to reflink files to: " + outputFolder);
+
+            return;
+        }
+
+        final Path source = tree.toPath();
+        final Path target = outputFolder.toPath();
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                Path link = target.resolve(source.relativize(file));
+                Files.deleteIfExists(link);
+
+                if (linkMode == LinkMode.HARDLINK)
+                {
+                    try
+                    {
+                        Files.createLink(link, file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    catch (IOException | UnsupportedOperationException e)
+                    {
+                        // different filesystem, file is copied instead
+                    }
+                }
+
+                Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Probes once per filesystem of output folders whether files of cache can be reflinked to it.
+     */
+    private boolean isReflinkSupported(File outputFolder) throws IOException
+    {
+        FileStore fileStore = Files.getFileStore(outputFolder.toPath());
+        Boolean supported = reflinkSupport.get(fileStore);
+
+        if (supported != null)
+            return supported;
+
+        File probeFile = new File(cacheFolder, TEMP_PREFIX + UUID.randomUUID());
+        File probeLink = new File(outputFolder, probeFile.getName());
+
+        try
+        {
+            Files.write(probeFile.toPath(), new byte[] { 0 });
+            supported = reflink(probeFile.getPath(), probeLink);
+        }
+        finally
+        {
+            probeFile.delete();
+            probeLink.delete();
+        }
+
+        reflinkSupport.put(fileStore, supported);
+
+        return supported;
+    }
+
+    /**
+     * Returns false when cp failed or is not available, output is merged and discarded so that cp never blocks on it.
+     */
+    private static boolean reflink(String source, File target) throws IOException
+    {
+        Process process;
+
+        try
+        {
+            process = new ProcessBuilder("cp", "-R", "--reflink=always", "--preserve=timestamps", source, target.getPath())
+                    .redirectErrorStream(true)
+                    .start();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+
+        try (InputStream is = process.getInputStream())
+        {
+            IOUtils.copy(is, NullOutputStream.NULL_OUTPUT_STREAM);
+
+            return process.waitFor() == 0;
+        }
+        catch (InterruptedException e)
+        {
+            process.destroy();
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while linking files to: " + target);
+        }
+    }
+
+    /**
+     * Registers trees left by previous runs, ordered by their last use. Incomplete and evicted folders are deleted.
+     */
+    private void load() throws IOException
+    {
+        File[] folders = cacheFolder.listFiles();
+
+        if (folders == null)
+            return;
+
+        List<File> cached = new ArrayList<>();
+
+        for (File folder : folders)
+        {
+            if (folder.isDirectory() && DIGEST_PATTERN.matcher(folder.getName()).matches() && new File(folder, SNAPSHOT_FILE).isFile())
+                cached.add(folder);
+            else if (folder.getName().startsWith(TEMP_PREFIX))
+                delete(folder);
+        }
+
+        cached.sort(Comparator.comparingLong(File::lastModified));
+
+        for (File folder : cached)
+        {
+            ExtractionSnapshot snapshot = new ExtractionSnapshot();
+
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(folder, SNAPSHOT_FILE)))))
+            {
+                snapshot.read(is);
+            }
+            catch (IOException e)
+            {
+                delete(folder);
+                continue;
+            }
+
+            long entrySize = FileUtils.sizeOfDirectory(new File(folder, TREE_FOLDER));
+
+            entries.put(folder.getName(), new CacheEntry(folder.getName(), folder, entrySize, snapshot));
+            size += entrySize;
+        }
+
+        for (File folder : evict())
+            delete(folder);
+    }
+
+    /**
+     * SHA-256 of file, digests are remembered by path, size and modification time of the file.
+     */
+    private String digest(File file) throws IOException
+    {
+        String path = file.getAbsolutePath();
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (digests)
+        {
+            FileDigest fileDigest = digests.get(path);
+
+            if (fileDigest != null && fileDigest.size == fileSize && fileDigest.lastModified == lastModified)
+                return fileDigest.digest;
+        }
+
+        MessageDigest md;
+
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream is = new FileInputStream(file))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                md.update(buffer, 0, read);
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : md.digest())
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        String digest = sb.toString();
+
+        synchronized (digests)
+        {
+            digests.put(path, new FileDigest(fileSize, lastModified, digest));
+        }
+
+        return digest;
+    }
+}
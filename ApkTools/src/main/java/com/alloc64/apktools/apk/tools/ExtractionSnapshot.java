@@ -0,0 +1,152 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import com.alloc64.apktools.apk.ApkArchive;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Size, modification time and CRC32 of files extracted by {@link ApkZipper#unzip(File, File, ExtractionSnapshot)}.
+ * Extracted files get modification time of their entries, so any later change of a file changes its modification time
+ * and unchanged files can be copied from the original archive without reading them.
+ * <p>
+ * Entries left in archive by lazy extraction are deferred, they are copied from the original archive as is when zipping,
+ * unless they were extracted meanwhile.
+ */
+public class ExtractionSnapshot
+{
+    private static class FileState
+    {
+        final long size;
+        final long lastModified;
+        final long crc;
+
+        FileState(long size, long lastModified, long crc)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+        }
+    }
+
+    private final Map<String, FileState> states = new HashMap<>();
+    private final Set<String> deferred = new TreeSet<>();
+
+    void add(String name, long size, long lastModified, long crc)
+    {
+        states.put(name, new FileState(size, lastModified, crc));
+    }
+
+    void defer(String name)
+    {
+        deferred.add(name);
+    }
+
+    boolean undefer(String name)
+    {
+        return deferred.remove(name);
+    }
+
+    public boolean isDeferred(String name)
+    {
+        return deferred.contains(name);
+    }
+
+    public Set<String> getDeferredEntries()
+    {
+        return Collections.unmodifiableSet(new TreeSet<>(deferred));
+    }
+
+    /**
+     * Deferred entries with name starting with prefix are left out of zipped archive.
+     */
+    public void discardDeferred(String prefix)
+    {
+        for (Iterator<String> it = deferred.iterator(); it.hasNext(); )
+        {
+            if (it.next().startsWith(prefix))
+                it.remove();
+        }
+    }
+
+    public int size()
+    {
+        return states.size();
+    }
+
+    public void clear()
+    {
+        states.clear();
+        deferred.clear();
+    }
+
+    void addAll(ExtractionSnapshot snapshot)
+    {
+        states.putAll(snapshot.states);
+    }
+
+    /**
+     * Returns true when all files recorded in snapshot still have their recorded size and modification time.
+     */
+    boolean isUnchanged(File folder)
+    {
+        for (Map.Entry<String, FileState> kvp : states.entrySet())
+        {
+            File file = new File(folder, kvp.getKey());
+            FileState state = kvp.getValue();
+
+            if (file.length() != state.size || file.lastModified() != state.lastModified)
+                return false;
+        }
+
+        return true;
+    }
+
+    void write(DataOutputStream os) throws IOException
+    {
+        os.writeInt(states.size());
+
+        for (Map.Entry<String, FileState> kvp : states.entrySet())
+        {
+            FileState state = kvp.getValue();
+
+            os.writeUTF(kvp.getKey());
+            os.writeLong(state.size);
+            os.writeLong(state.lastModified);
+            os.writeLong(state.crc);
+        }
+    }
+
+    void read(DataInputStream is) throws IOException
+    {
+        for (int count = is.readInt(); count > 0; count--)
+            add(is.readUTF(), is.readLong(), is.readLong(), is.readLong());
+    }
+
+    /**
+     * Returns true when file was extracted from entry with the same content and it was not modified since, file is not read.
+     */
+    public boolean isUnchanged(String name, File file, ApkArchive.Entry entry)
+    {
+        FileState state = states.get(name);
+
+        if (state == null || state.size != entry.getSize() || state.crc != entry.getCrc())
+            return false;
+
+        return file.length() == state.size && file.lastModified() == state.lastModified;
+    }
+}
@@ -0,0 +1,117 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Working folders on memory backed filesystem (tmpfs), folders are placed there while their estimated sizes
+ * fit into memory budget. Jobs exceeding the budget spill to disk storage.
+ */
+public class MemoryWorkingStorage implements WorkingStorage
+{
+    private static final File SHARED_MEMORY_FOLDER = new File("/dev/shm");
+
+    private final DiskWorkingStorage memoryStorage;
+    private final WorkingStorage spillStorage;
+    private final long memoryBudget;
+
+    private final Map<File, Long> reservations = new HashMap<>();
+    private long memoryUsage;
+    private long spillCount;
+
+    /**
+     * Uses /dev/shm as memory backed folder.
+     */
+    public MemoryWorkingStorage(long memoryBudget, File spillFolder) throws IOException
+    {
+        this(new File(SHARED_MEMORY_FOLDER, "apktools"), memoryBudget, new DiskWorkingStorage(spillFolder));
+    }
+
+    public MemoryWorkingStorage(File memoryFolder, long memoryBudget, WorkingStorage spillStorage) throws IOException
+    {
+        if (!memoryFolder.isDirectory() && !memoryFolder.mkdirs())
+            throw new IOException("Unable to create memory folder: " + memoryFolder);
+
+        this.memoryStorage = new DiskWorkingStorage(memoryFolder);
+        this.memoryBudget = memoryBudget;
+        this.spillStorage = spillStorage;
+    }
+
+    public static boolean isSharedMemoryAvailable()
+    {
+        return SHARED_MEMORY_FOLDER.isDirectory() && SHARED_MEMORY_FOLDER.canWrite();
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    public synchronized long getMemoryUsage()
+    {
+        return memoryUsage;
+    }
+
+    public synchronized long getSpillCount()
+    {
+        return spillCount;
+    }
+
+    @Override
+    public File allocate(String name, long estimatedSize) throws IOException
+    {
+        synchronized (this)
+        {
+            if (memoryUsage + estimatedSize <= memoryBudget)
+            {
+                File folder = memoryStorage.allocate(name, estimatedSize);
+
+                reservations.put(folder, estimatedSize);
+                memoryUsage += estimatedSize;
+
+                return folder;
+            }
+
+            spillCount++;
+        }
+
+        return spillStorage.allocate(name, estimatedSize);
+    }
+
+    @Override
+    public void release(File folder) throws IOException
+    {
+        Long reserved;
+
+        synchronized (this)
+        {
+            reserved = reservations.remove(folder);
+        }
+
+        if (reserved == null)
+        {
+            spillStorage.release(folder);
+            return;
+        }
+
+        try
+        {
+            memoryStorage.release(folder);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                memoryUsage -= reserved;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Estimates compressibility of a file by deflating its first few KB with fast level. Files whose estimated compressed size
+ * is close to original size (media, encrypted or already compressed data) are stored, files compressing well are
+ * deflated with maximum level, others with fast level. Overrides are matched first, in order they were added.
+ */
+public class SamplingCompressionPolicy implements CompressionPolicy
+{
+    public static final int DEFAULT_SAMPLE_SIZE = 8 * 1024;
+
+    /**
+     * Deflate overhead exceeds any gain on tiny files.
+     */
+    private static final int MIN_DEFLATE_SIZE = 64;
+    private static final int OUTPUT_BUFFER = 4 * 1024;
+
+    private final int sampleSize;
+    private final double storeRatio;
+    private final double fastRatio;
+    private final Map<Pattern, Compression> overrides = new LinkedHashMap<>();
+
+    public SamplingCompressionPolicy()
+    {
+        this(DEFAULT_SAMPLE_SIZE, 0.9, 0.6);
+    }
+
+    /**
+     * Files with estimated compression ratio (compressed / original size) of at least storeRatio are stored,
+     * files with ratio of at least fastRatio are deflated with fast level.
+     */
+    public SamplingCompressionPolicy(int sampleSize, double storeRatio, double fastRatio)
+    {
+        if (sampleSize < 1)
+            throw new IllegalArgumentException("Invalid sample size: " + sampleSize);
+
+        this.sampleSize = sampleSize;
+        this.storeRatio = storeRatio;
+        this.fastRatio = fastRatio;
+    }
+
+    /**
+     * Entries with name matching regex are compressed as given, file is not sampled.
+     */
+    public SamplingCompressionPolicy override(String regex, Compression compression)
+    {
+        overrides.put(Pattern.compile(regex), compression);
+        return this;
+    }
+
+    @Override
+    public Compression getCompression(String name, File file) throws IOException
+    {
+        for (Map.Entry<Pattern, Compression> kvp : overrides.entrySet())
+        {
+            if (kvp.getKey().matcher(name).find())
+                return kvp.getValue();
+        }
+
+        if (file.length() < MIN_DEFLATE_SIZE)
+            return Compression.STORED;
+
+        double ratio = estimateRatio(file);
+
+        if (ratio >= storeRatio)
+            return Compression.STORED;
+
+        if (ratio >= fastRatio)
+            return Compression.FAST;
+
+        return Compression.MAXIMUM;
+    }
+
+    /**
+     * Compressed size of the sample deflated with fast level divided by sample size, unlike byte entropy
+     * it accounts for repeated sequences (tables, repeated records).
+     */
+    private double estimateRatio(File file) throws IOException
+    {
+        CodecPool codecs = CodecPool.shared();
+        int limit = (int) Math.min(sampleSize, file.length());
+
+        byte[] sample = codecs.acquireArray(limit);
+        byte[] output = codecs.acquireArray(OUTPUT_BUFFER);
+        Deflater deflater = codecs.acquireDeflater(Deflater.BEST_SPEED);
+
+        try
+        {
+            int length = 0;
+
+            try (InputStream is = new FileInputStream(file))
+            {
+                int read;
+                while (length < limit && (read = is.read(sample, length, limit - length)) != -1)
+                    length += read;
+            }
+
+            if (length == 0)
+                return 1;
+
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            long compressedSize = 0;
+
+            while (!deflater.finished())
+                compressedSize += deflater.deflate(output, 0, output.length);
+
+            return (double) compressedSize / length;
+        }
+        finally
+        {
+            codecs.release(deflater, Deflater.BEST_SPEED);
+            codecs.release(output);
+            codecs.release(sample);
+        }
+    }
+}
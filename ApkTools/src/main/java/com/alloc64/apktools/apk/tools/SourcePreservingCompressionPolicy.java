@@ -0,0 +1,97 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+/**
+ * Keeps compression method entries had in reference archive, level of deflated entries and compression of new files
+ * is decided by fallback policy. Entries matching must-store rules are always stored, resources.arsc by default
+ * (Android 11+ refuses to install apps targeting API 30+ with compressed resources.arsc).
+ * Dex files are compressed unless they were stored in reference archive, storing all of them is opt-in by {@link #storeDex()}.
+ */
+public class SourcePreservingCompressionPolicy implements CompressionPolicy
+{
+    private static final String RESOURCES_PATTERN = "^resources\\.arsc$";
+    private static final String DEX_PATTERN = "^classes\\d*\\.dex$";
+
+    private final CompressionPolicy fallback;
+    private final List<Pattern> storedPatterns = new ArrayList<>();
+
+    public SourcePreservingCompressionPolicy()
+    {
+        this(CompressionPolicy.BY_EXTENSION);
+    }
+
+    public SourcePreservingCompressionPolicy(CompressionPolicy fallback)
+    {
+        this.fallback = fallback;
+        mustStore(RESOURCES_PATTERN);
+    }
+
+    /**
+     * Entries with name matching regex are stored regardless of their method in reference archive.
+     */
+    public SourcePreservingCompressionPolicy mustStore(String regex)
+    {
+        storedPatterns.add(Pattern.compile(regex));
+        return this;
+    }
+
+    /**
+     * Root dex files (classes*.dex) are stored, so they can be used directly from APK by apps with useEmbeddedDex.
+     */
+    public SourcePreservingCompressionPolicy storeDex()
+    {
+        return mustStore(DEX_PATTERN);
+    }
+
+    @Override
+    public Compression getCompression(String name, File file) throws IOException
+    {
+        return getCompression(name, file, -1);
+    }
+
+    @Override
+    public Compression getCompression(String name, File file, int sourceMethod) throws IOException
+    {
+        if (isStored(name))
+            return Compression.STORED;
+
+        if (sourceMethod == ZipEntry.STORED)
+            return Compression.STORED;
+
+        Compression compression = fallback.getCompression(name, file, sourceMethod);
+
+        if (sourceMethod == ZipEntry.DEFLATED && compression == Compression.STORED)
+            return Compression.DEFAULT;
+
+        return compression;
+    }
+
+    @Override
+    public boolean canReuse(String name, int sourceMethod)
+    {
+        return sourceMethod == ZipEntry.STORED || !isStored(name);
+    }
+
+    private boolean isStored(String name)
+    {
+        for (Pattern pattern : storedPatterns)
+        {
+            if (pattern.matcher(name).find())
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,27 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Storage of working folders holding intermediate state of jobs (unzipped APK, disassembled smali).
+ * Folders are real paths, as smali, baksmali and apktool work with files.
+ */
+public interface WorkingStorage
+{
+    /**
+     * Creates empty folder for job expected to write estimatedSize bytes.
+     */
+    File allocate(String name, long estimatedSize) throws IOException;
+
+    /**
+     * Deletes folder created by {@link #allocate(String, long)}.
+     */
+    void release(File folder) throws IOException;
+}
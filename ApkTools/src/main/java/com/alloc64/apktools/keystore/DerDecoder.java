@@ -0,0 +1,116 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.keystore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal ASN.1 DER decoder, counterpart of {@link DerEncoder}. Values are passed around as complete TLV byte arrays.
+ */
+public class DerDecoder
+{
+	public static int tag(byte[] tlv)
+	{
+		return tlv[0] & 0xff;
+	}
+
+	public static byte[] content(byte[] tlv)
+	{
+		int[] header = readHeader(tlv, 0);
+
+		return Arrays.copyOfRange(tlv, header[0], header[0] + header[1]);
+	}
+
+	/**
+	 * Splits content of constructed value (SEQUENCE, SET, tagged) into its items.
+	 */
+	public static List<byte[]> children(byte[] tlv)
+	{
+		int[] header = readHeader(tlv, 0);
+
+		List<byte[]> result = new ArrayList<>();
+
+		int offset = header[0];
+		int end = header[0] + header[1];
+
+		while (offset < end)
+		{
+			int[] child = readHeader(tlv, offset);
+			int childEnd = child[0] + child[1];
+
+			if (childEnd > end)
+				throw new IllegalArgumentException("DER value out of bounds of its parent.");
+
+			result.add(Arrays.copyOfRange(tlv, offset, childEnd));
+			offset = childEnd;
+		}
+
+		return result;
+	}
+
+	public static String oid(byte[] tlv)
+	{
+		byte[] content = content(tlv);
+
+		StringBuilder sb = new StringBuilder();
+		long value = 0;
+
+		for (int i = 0; i < content.length; i++)
+		{
+			value = (value << 7) | (content[i] & 0x7f);
+
+			if ((content[i] & 0x80) != 0)
+				continue;
+
+			if (sb.length() == 0)
+			{
+				long first = Math.min(value / 40, 2);
+				sb.append(first).append('.').append(value - first * 40);
+			}
+			else
+			{
+				sb.append('.').append(value);
+			}
+
+			value = 0;
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Returns {offset of content, length of content} of value starting at offset.
+	 */
+	private static int[] readHeader(byte[] data, int offset)
+	{
+		if (offset + 2 > data.length)
+			throw new IllegalArgumentException("Truncated DER value.");
+
+		int length = data[offset + 1] & 0xff;
+		int contentOffset = offset + 2;
+
+		if (length >= 0x80)
+		{
+			int bytes = length & 0x7f;
+
+			if (bytes == 0 || bytes > 4 || contentOffset + bytes > data.length)
+				throw new IllegalArgumentException("Unsupported DER length encoding.");
+
+			length = 0;
+
+			for (int i = 0; i < bytes; i++)
+				length = (length << 8) | (data[contentOffset++] & 0xff);
+		}
+
+		if (length < 0 || contentOffset + length > data.length)
+			throw new IllegalArgumentException("Truncated DER value.");
+
+		return new int[]{contentOffset, length};
+	}
+}
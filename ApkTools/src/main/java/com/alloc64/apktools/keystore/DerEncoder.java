@@ -0,0 +1,167 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.keystore;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Minimal ASN.1 DER encoder, just enough to build PKCS#7 signature blocks and certificates.
+ */
+public class DerEncoder
+{
+	private static final int TAG_INTEGER = 0x02;
+	private static final int TAG_BIT_STRING = 0x03;
+	private static final int TAG_OCTET_STRING = 0x04;
+	private static final int TAG_NULL = 0x05;
+	private static final int TAG_OID = 0x06;
+	private static final int TAG_UTC_TIME = 0x17;
+	private static final int TAG_GENERALIZED_TIME = 0x18;
+	private static final int TAG_SEQUENCE = 0x30;
+	private static final int TAG_SET = 0x31;
+
+	public static byte[] sequence(byte[]... items)
+	{
+		return encode(TAG_SEQUENCE, concat(items));
+	}
+
+	public static byte[] set(byte[]... items)
+	{
+		return encode(TAG_SET, concat(items));
+	}
+
+	public static byte[] integer(long value)
+	{
+		return integer(BigInteger.valueOf(value));
+	}
+
+	public static byte[] integer(BigInteger value)
+	{
+		return encode(TAG_INTEGER, value.toByteArray());
+	}
+
+	public static byte[] nullValue()
+	{
+		return encode(TAG_NULL, new byte[0]);
+	}
+
+	public static byte[] octetString(byte[] value)
+	{
+		return encode(TAG_OCTET_STRING, value);
+	}
+
+	public static byte[] bitString(byte[] value)
+	{
+		return encode(TAG_BIT_STRING, concat(new byte[1], value));
+	}
+
+	/**
+	 * X.509 time, UTCTime until 2049 and GeneralizedTime since 2050.
+	 */
+	public static byte[] time(Date date)
+	{
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTime(date);
+
+		boolean utcTime = calendar.get(Calendar.YEAR) < 2050;
+
+		SimpleDateFormat format = new SimpleDateFormat(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		return encode(utcTime ? TAG_UTC_TIME : TAG_GENERALIZED_TIME, format.format(date).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public static byte[] oid(String oid)
+	{
+		String[] parts = oid.split("\\.");
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		writeBase128(os, Long.parseLong(parts[0]) * 40 + Long.parseLong(parts[1]));
+
+		for (int i = 2; i < parts.length; i++)
+			writeBase128(os, Long.parseLong(parts[i]));
+
+		return encode(TAG_OID, os.toByteArray());
+	}
+
+	/**
+	 * AlgorithmIdentifier, parameters are omitted when null.
+	 */
+	public static byte[] algorithm(String oid, byte[] parameters)
+	{
+		if (parameters == null)
+			return sequence(oid(oid));
+
+		return sequence(oid(oid), parameters);
+	}
+
+	/**
+	 * Context specific constructed tag, [tag] EXPLICIT or [tag] IMPLICIT SET/SEQUENCE OF.
+	 */
+	public static byte[] tagged(int tag, byte[]... items)
+	{
+		return encode(0xa0 | tag, concat(items));
+	}
+
+	public static byte[] encode(int tag, byte[] content)
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream(content.length + 6);
+		os.write(tag);
+
+		int length = content.length;
+
+		if (length < 0x80)
+		{
+			os.write(length);
+		}
+		else
+		{
+			int bytes = 0;
+
+			for (int l = length; l > 0; l >>>= 8)
+				bytes++;
+
+			os.write(0x80 | bytes);
+
+			for (int i = bytes - 1; i >= 0; i--)
+				os.write((length >>> (i * 8)) & 0xff);
+		}
+
+		os.write(content, 0, content.length);
+
+		return os.toByteArray();
+	}
+
+	public static byte[] concat(byte[]... items)
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+		for (byte[] item : items)
+			os.write(item, 0, item.length);
+
+		return os.toByteArray();
+	}
+
+	private static void writeBase128(ByteArrayOutputStream os, long value)
+	{
+		int groups = 1;
+
+		for (long v = value >>> 7; v > 0; v >>>= 7)
+			groups++;
+
+		for (int i = groups - 1; i >= 0; i--)
+		{
+			int b = (int) ((value >>> (i * 7)) & 0x7f);
+			os.write(i > 0 ? b | 0x80 : b);
+		}
+	}
+}
@@ -6,29 +6,112 @@
 
 package com.alloc64.apktools.keystore;
 
-import com.alloc64.apktools.ProcessUtils;
-
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
 
+/**
+ * Generates signing keys in-process, same parameters as keytool was called with: 2048-bit RSA, validity of 10000 days.
+ */
 public class KeystoreGenerator
 {
+	private static final String KEY_ALGORITHM = "RSA";
+	private static final int KEY_SIZE = 2048;
+	private static final long VALIDITY_DAYS = 10000;
+
+	private static final String DISTINGUISHED_NAME = "CN=Android Debug, O=Android, C=US";
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Generates keystore and writes it to outputFile, which stays in place for returned info.
+	 * Key generation failures are reported as IOException, InterruptedException is kept for source compatibility
+	 * with keytool based implementation.
+	 */
 	public static KeystoreInfo generateKeystore(File outputFile, String alias, String password) throws IOException, InterruptedException
 	{
 		if(outputFile == null)
 			throw new FileNotFoundException("Keystore is null");
 
-		ProcessUtils.runProcess("keytool", "-genkey", "-v", "-keystore", outputFile.getAbsolutePath(), "-storepass", password, "-alias", alias, "-keypass", password, "-keyalg", "RSA", "-keysize", "2048", "-validity", "10000", "-dname", "C=US, O=Android, CN=Android Debug");
-
-		KeystoreInfo ki = null;
+		KeystoreInfo ki;
 
-		if(outputFile.exists())
+		try
+		{
+			ki = generateKeystore(alias, password);
+		}
+		catch (GeneralSecurityException e)
 		{
-			ki = new KeystoreInfo(outputFile, alias, password);
-			outputFile.delete();
+			throw new IOException("Unable to generate keystore: " + outputFile, e);
 		}
 
+		ki.store(outputFile);
+
 		return ki;
 	}
+
+	/**
+	 * Generates keystore held in memory only.
+	 */
+	public static KeystoreInfo generateKeystore(String alias, String password) throws IOException, GeneralSecurityException
+	{
+		return createKeystore(generateKeyEntry(), alias, password);
+	}
+
+	/**
+	 * Generates key pair with self-signed certificate, this is the expensive part of keystore generation.
+	 */
+	public static KeyStore.PrivateKeyEntry generateKeyEntry() throws GeneralSecurityException
+	{
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+		generator.initialize(KEY_SIZE, random);
+
+		KeyPair keyPair = generator.generateKeyPair();
+
+		return new KeyStore.PrivateKeyEntry(keyPair.getPrivate(), new Certificate[]{createCertificate(keyPair)});
+	}
+
+	public static KeystoreInfo createKeystore(KeyStore.PrivateKeyEntry keyEntry, String alias, String password)
+	{
+		return new KeystoreInfo(keyEntry, alias, password);
+	}
+
+	private static X509Certificate createCertificate(KeyPair keyPair) throws GeneralSecurityException
+	{
+		byte[] name = new X500Principal(DISTINGUISHED_NAME).getEncoded();
+		byte[] signatureAlgorithm = DerEncoder.algorithm("1.2.840.113549.1.1.11", DerEncoder.nullValue());
+
+		long now = System.currentTimeMillis();
+
+		byte[] tbsCertificate = DerEncoder.sequence(
+				DerEncoder.tagged(0, DerEncoder.integer(2)),
+				DerEncoder.integer(new BigInteger(63, random).add(BigInteger.ONE)),
+				signatureAlgorithm,
+				name,
+				DerEncoder.sequence(DerEncoder.time(new Date(now)), DerEncoder.time(new Date(now + TimeUnit.DAYS.toMillis(VALIDITY_DAYS)))),
+				name,
+				keyPair.getPublic().getEncoded());
+
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(tbsCertificate);
+
+		byte[] certificate = DerEncoder.sequence(tbsCertificate, signatureAlgorithm, DerEncoder.bitString(signature.sign()));
+
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificate));
+	}
 }
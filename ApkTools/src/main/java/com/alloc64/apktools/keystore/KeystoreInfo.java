@@ -8,12 +8,27 @@ package com.alloc64.apktools.keystore;
 
 import org.apache.commons.io.FileUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 
 public class KeystoreInfo
 {
 	private File keystoreFile;
+	private KeyStore keyStore;
+	private KeyStore.PrivateKeyEntry keyEntry;
 	private String alias;
 	private String passphrase;
 
@@ -24,6 +39,16 @@ public class KeystoreInfo
 		this.passphrase = passphrase;
 	}
 
+	/**
+	 * Key living only in memory, keystore is built when needed and no file is written until {@link #store(File)} is called.
+	 */
+	public KeystoreInfo(KeyStore.PrivateKeyEntry keyEntry, String alias, String passphrase)
+	{
+		this.keyEntry = keyEntry;
+		this.alias = alias;
+		this.passphrase = passphrase;
+	}
+
 	public File getKeystoreFile()
 	{
 		return keystoreFile;
@@ -31,7 +56,28 @@ public class KeystoreInfo
 
 	public byte[] getKeystoreFileBytes() throws IOException
 	{
-		return FileUtils.readFileToByteArray(keystoreFile);
+		if (keystoreFile != null)
+			return FileUtils.readFileToByteArray(keystoreFile);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		store(os);
+
+		return os.toByteArray();
+	}
+
+	/**
+	 * Writes keystore to outputFile, which becomes keystore file of this info.
+	 */
+	public File store(File outputFile) throws IOException
+	{
+		try (OutputStream os = new FileOutputStream(outputFile))
+		{
+			store(os);
+		}
+
+		this.keystoreFile = outputFile;
+
+		return outputFile;
 	}
 
 	public String getAlias()
@@ -44,8 +90,85 @@ public class KeystoreInfo
 		return passphrase;
 	}
 
+	/**
+	 * Loads keystore file, both JKS and PKCS12 formats are accepted. Loaded keystore is kept for subsequent calls.
+	 */
+	public KeyStore loadKeyStore() throws IOException, GeneralSecurityException
+	{
+		if (keyStore != null)
+			return keyStore;
+
+		if (keyEntry != null)
+		{
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			keyStore.load(null, null);
+			keyStore.setKeyEntry(alias, keyEntry.getPrivateKey(), passphrase.toCharArray(), keyEntry.getCertificateChain());
+
+			this.keyStore = keyStore;
+
+			return keyStore;
+		}
+
+		Exception lastException = null;
+
+		for (String type : new String[] {"JKS", "PKCS12"})
+		{
+			try (InputStream is = new FileInputStream(keystoreFile))
+			{
+				KeyStore keyStore = KeyStore.getInstance(type);
+				keyStore.load(is, passphrase.toCharArray());
+
+				this.keyStore = keyStore;
+
+				return keyStore;
+			}
+			catch (IOException | GeneralSecurityException e)
+			{
+				lastException = e;
+			}
+		}
+
+		throw new KeyStoreException("Unable to load keystore: " + keystoreFile, lastException);
+	}
+
+	public PrivateKey getPrivateKey() throws IOException, GeneralSecurityException
+	{
+		if (keyEntry != null)
+			return keyEntry.getPrivateKey();
+
+		Key key = loadKeyStore().getKey(alias, passphrase.toCharArray());
+
+		if (!(key instanceof PrivateKey))
+			throw new UnrecoverableKeyException("No private key with alias " + alias + " in " + keystoreFile);
+
+		return (PrivateKey) key;
+	}
+
+	public X509Certificate getCertificate() throws IOException, GeneralSecurityException
+	{
+		Certificate certificate = keyEntry != null ? keyEntry.getCertificate() : loadKeyStore().getCertificate(alias);
+
+		if (!(certificate instanceof X509Certificate))
+			throw new KeyStoreException("No X.509 certificate with alias " + alias + " in " + keystoreFile);
+
+		return (X509Certificate) certificate;
+	}
+
 	public void dispose()
 	{
-		keystoreFile.delete();
+		if (keystoreFile != null)
+			keystoreFile.delete();
+	}
+
+	private void store(OutputStream os) throws IOException
+	{
+		try
+		{
+			loadKeyStore().store(os, passphrase.toCharArray());
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Unable to store keystore with alias: " + alias, e);
+		}
 	}
 }
@@ -0,0 +1,112 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.keystore;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pre-generates key entries on low priority background threads, so that keystore can be taken without waiting
+ * for key generation. When the pool is drained, key is generated on the calling thread.
+ */
+public class KeystorePool implements Closeable
+{
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 30 * 1000;
+
+	private final BlockingQueue<KeyStore.PrivateKeyEntry> keyEntries;
+	private final ExecutorService executor;
+
+	public KeystorePool(int size)
+	{
+		this(size, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	public KeystorePool(int size, int threadCount)
+	{
+		this.keyEntries = new ArrayBlockingQueue<>(size);
+		this.executor = Executors.newFixedThreadPool(threadCount, r ->
+		{
+			Thread thread = new Thread(r, "KeystorePool");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+
+			return thread;
+		});
+
+		for (int i = 0; i < threadCount; i++)
+			executor.execute(this::generate);
+	}
+
+	/**
+	 * Number of key entries ready to be taken.
+	 */
+	public int available()
+	{
+		return keyEntries.size();
+	}
+
+	public KeystoreInfo take(String alias, String password) throws GeneralSecurityException
+	{
+		KeyStore.PrivateKeyEntry keyEntry = keyEntries.poll();
+
+		if (keyEntry == null)
+			keyEntry = KeystoreGenerator.generateKeyEntry();
+
+		return KeystoreGenerator.createKeystore(keyEntry, alias, password);
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+		keyEntries.clear();
+	}
+
+	/**
+	 * Failed generation does not stop the worker, it is retried after a delay growing up to MAX_RETRY_DELAY.
+	 * Meanwhile take() generates keys on the calling thread, so a persistent failure is thrown to its caller.
+	 */
+	private void generate()
+	{
+		long retryDelay = MIN_RETRY_DELAY;
+
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				KeyStore.PrivateKeyEntry keyEntry;
+
+				try
+				{
+					keyEntry = KeystoreGenerator.generateKeyEntry();
+				}
+				catch (GeneralSecurityException | RuntimeException e)
+				{
+					e.printStackTrace();
+
+					Thread.sleep(retryDelay);
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+
+					continue;
+				}
+
+				retryDelay = MIN_RETRY_DELAY;
+				keyEntries.put(keyEntry);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/***********************************************************************
+ * Copyright (c) 2019 Milan Jaitner                                   *
+ * Distributed under the MIT software license, see the accompanying    *
+ * file COPYING or https://www.opensource.org/licenses/mit-license.php.*
+ ***********************************************************************/
+
+package com.alloc64.apktools.apk.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs hundreds of unzip, zip and zipalign jobs concurrently on shared tool instances,
+ * every job has to produce the same bytes as a single job run alone. Entry order is checked separately,
+ * it must not depend on the order in which the file system lists extracted files.
+ */
+public class ApkZipperConcurrencyTest
+{
+    private static final int THREAD_COUNT = 16;
+    private static final int JOB_COUNT = 400;
+    private static final int ENTRY_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File sourceFile;
+    private List<String> sourceNames;
+    private List<String> sortedNames;
+    private byte[] expectedZip;
+    private byte[] expectedAlignedZip;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        sourceFile = temporaryFolder.newFile("source.apk");
+        writeArchive(sourceFile);
+
+        sourceNames = getEntryNames(sourceFile);
+        sortedNames = new ArrayList<>(sourceNames);
+        Collections.sort(sortedNames);
+
+        assertNotEquals("Source entries must not be sorted by name", sortedNames, sourceNames);
+
+        File unzippedFolder = temporaryFolder.newFolder("expected");
+        File zipFile = new File(temporaryFolder.getRoot(), "expected.apk");
+        File alignedFile = new File(temporaryFolder.getRoot(), "expected_aligned.apk");
+
+        ApkZipper zipper = new ApkZipper();
+        zipper.unzip(sourceFile, unzippedFolder, new ExtractionSnapshot());
+        zipper.zip(unzippedFolder, zipFile);
+
+        new ApkZipalign().zipalign(zipFile, alignedFile);
+
+        assertEquals(sortedNames, getEntryNames(zipFile));
+
+        expectedZip = Files.readAllBytes(zipFile.toPath());
+        expectedAlignedZip = Files.readAllBytes(alignedFile.toPath());
+    }
+
+    @Test
+    public void concurrentJobsProduceIdenticalOutput() throws Exception
+    {
+        ApkZipper zipper = new ApkZipper();
+        ApkZipper parallelZipper = new ApkZipper();
+        parallelZipper.setThreadCount(4);
+
+        ApkZipalign zipalign = new ApkZipalign();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        try
+        {
+            List<Future<Void>> futureList = new ArrayList<>();
+
+            for (int i = 0; i < JOB_COUNT; i++)
+            {
+                final int job = i;
+
+                futureList.add(executor.submit(() ->
+                {
+                    runJob(job, job % 2 == 0 ? zipper : parallelZipper, zipalign);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futureList)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+    }
+
+    private void runJob(int job, ApkZipper zipper, ApkZipalign zipalign) throws IOException
+    {
+        File jobFolder = new File(temporaryFolder.getRoot(), "job" + job);
+        File unzippedFolder = new File(jobFolder, "unzipped");
+        File zipFile = new File(jobFolder, "output.apk");
+        File alignedFile = new File(jobFolder, "output_aligned.apk");
+        File referenceZipFile = new File(jobFolder, "output_reference.apk");
+
+        zipper.unzip(sourceFile, unzippedFolder, new ExtractionSnapshot());
+        zipper.zip(unzippedFolder, zipFile);
+        zipper.zip(unzippedFolder, referenceZipFile, sourceFile);
+
+        zipalign.zipalign(zipFile, alignedFile);
+
+        assertEquals("Entries of job " + job, sortedNames, getEntryNames(zipFile));
+        assertEquals("Entries of job " + job + " zipped with reference", sourceNames, getEntryNames(referenceZipFile));
+
+        assertArrayEquals("Zip of job " + job, expectedZip, Files.readAllBytes(zipFile.toPath()));
+        assertArrayEquals("Aligned zip of job " + job, expectedAlignedZip, Files.readAllBytes(alignedFile.toPath()));
+
+        FileUtils.deleteDirectory(jobFolder);
+    }
+
+    private static List<String> getEntryNames(File file) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+
+        try (ZipFile zipFile = new ZipFile(file))
+        {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+            while (entries.hasMoreElements())
+                result.add(entries.nextElement().getName());
+        }
+
+        return result;
+    }
+
+    /**
+     * Mix of stored and deflated entries, compressible and random content, in nested folders.
+     */
+    private static void writeArchive(File file) throws IOException
+    {
+        Random random = new Random(0);
+        CRC32 crc = new CRC32();
+
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file)))
+        {
+            for (int i = 0; i < ENTRY_COUNT; i++)
+            {
+                byte[] data = new byte[random.nextInt(32 * 1024)];
+
+                if (i % 3 == 0)
+                    random.nextBytes(data);
+                else
+                    for (int j = 0; j < data.length; j++)
+                        data[j] = (byte) ('a' + (j * 7 + i) % 13);
+
+                ZipEntry entry;
+
+                if (i % 4 == 0)
+                {
+                    crc.reset();
+                    crc.update(data, 0, data.length);
+
+                    entry = new ZipEntry(String.format("res/raw/file_%d.png", i));
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                else
+                {
+                    entry = new ZipEntry(String.format("assets/folder_%d/file_%d.txt", i % 10, i));
+                }
+
+                entry.setTime(1546300800000L + i * 2000L);
+
+                zos.putNextEntry(entry);
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+    }
+}